@@ -0,0 +1,182 @@
+package dev.al3mid3x.discovery;
+
+import me.akraml.loader.LoaderBackend;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent index of inspected plugin JARs, so a restart only re-opens and re-hashes the JARs whose
+ * {@link FileStamp} changed since they were last inspected. It also remembers the last hash and revision of
+ * every plugin name, so revisions keep increasing across restarts.
+ */
+final class DiscoveryIndex {
+
+    private static final int FORMAT_VERSION = 3;
+
+    private final File indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Revision> revisions = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    DiscoveryIndex(File indexFile) {
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * @return The indexed information of the provided JAR, or {@code null} if it's missing or outdated.
+     */
+    PluginInfo lookup(final File file) {
+        final Entry entry = entries.get(file.getAbsolutePath());
+        if (entry == null || !entry.stamp.equals(FileStamp.of(file))) return null;
+        return entry.pluginInfo;
+    }
+
+    /**
+     * @param stamp The stamp the JAR had before it was hashed.
+     */
+    void record(final PluginInfo pluginInfo, final FileStamp stamp) {
+        entries.put(pluginInfo.file().getAbsolutePath(), new Entry(stamp, pluginInfo));
+        dirty = true;
+    }
+
+    /**
+     * @return The revision of the plugin with the provided content hash, which is the previous revision
+     * if the hash didn't change and the next one if it did.
+     */
+    synchronized long revisionOf(final String pluginName, final String hash) {
+        final String key = pluginName.toLowerCase();
+        final Revision previous = revisions.get(key);
+        if (previous != null && previous.hash.equals(hash)) return previous.revision;
+
+        final Revision next = new Revision(hash, previous == null ? 1 : previous.revision + 1);
+        revisions.put(key, next);
+        dirty = true;
+        return next.revision;
+    }
+
+    /**
+     * Drops the entries of every JAR that isn't in the provided set of absolute paths anymore.
+     */
+    void retainOnly(final Set<String> paths) {
+        if (entries.keySet().retainAll(paths)) dirty = true;
+    }
+
+    synchronized void save() {
+        if (!dirty) return;
+        dirty = false;
+
+        final List<Map<String, Object>> serializedEntries = new ArrayList<>();
+        for (final Entry entry : entries.values()) {
+            final Map<String, Object> serialized = new LinkedHashMap<>();
+            serialized.put("path", entry.pluginInfo.file().getAbsolutePath());
+            serialized.put("file-key", entry.stamp.fileKey());
+            serialized.put("size", entry.stamp.size());
+            serialized.put("modified-nanos", entry.stamp.modifiedNanos());
+            serialized.put("hash", entry.pluginInfo.hash());
+            serialized.put("revision", entry.pluginInfo.revision());
+            serialized.put("description", new LinkedHashMap<>(entry.pluginInfo.description()));
+            serialized.put("groups", new ArrayList<>(entry.pluginInfo.groups()));
+            serializedEntries.add(serialized);
+        }
+        final Map<String, Object> serializedRevisions = new LinkedHashMap<>();
+        for (final Map.Entry<String, Revision> revision : revisions.entrySet()) {
+            final Map<String, Object> serialized = new LinkedHashMap<>();
+            serialized.put("hash", revision.getValue().hash);
+            serialized.put("revision", revision.getValue().revision);
+            serializedRevisions.put(revision.getKey(), serialized);
+        }
+        final Map<String, Object> root = new LinkedHashMap<>();
+        root.put("version", FORMAT_VERSION);
+        root.put("entries", serializedEntries);
+        root.put("revisions", serializedRevisions);
+
+        final DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        try {
+            final Path tempFile = Files.createTempFile(indexFile.getAbsoluteFile().getParentFile().toPath(), "discovery-index", ".tmp");
+            try (final Writer writer = new OutputStreamWriter(Files.newOutputStream(tempFile), StandardCharsets.UTF_8)) {
+                new Yaml(options).dump(root, writer);
+            }
+            Files.move(tempFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            LoaderBackend.getLogger().warning("Failed to save the discovery index: " + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        if (!indexFile.exists()) return;
+        try (final InputStream inputStream = new FileInputStream(indexFile)) {
+            final Map<String, Object> root = new Yaml().load(inputStream);
+            if (root == null || !Integer.valueOf(FORMAT_VERSION).equals(root.get("version"))) {
+                LoaderBackend.getLogger().info("Discovery index has an unknown format, it will be rebuilt.");
+                return;
+            }
+            for (final Map.Entry<String, Map<String, Object>> revision : ((Map<String, Map<String, Object>>) root.get("revisions")).entrySet()) {
+                revisions.put(revision.getKey(), new Revision(
+                        (String) revision.getValue().get("hash"),
+                        ((Number) revision.getValue().get("revision")).longValue()));
+            }
+            for (final Map<String, Object> serialized : (List<Map<String, Object>>) root.get("entries")) {
+                final File file = new File((String) serialized.get("path"));
+                final Map<String, Object> description = new HashMap<>((Map<String, Object>) serialized.get("description"));
+                final FileStamp stamp = new FileStamp(
+                        (String) serialized.get("file-key"),
+                        ((Number) serialized.get("size")).longValue(),
+                        ((Number) serialized.get("modified-nanos")).longValue());
+                entries.put(file.getAbsolutePath(), new Entry(stamp, new PluginInfo(
+                        (String) description.get("name"),
+                        (String) description.get("main"),
+                        file,
+                        (String) serialized.get("hash"),
+                        stamp.size(),
+                        ((Number) serialized.get("revision")).longValue(),
+                        description,
+                        new TreeSet<>((List<String>) serialized.get("groups")))));
+            }
+        } catch (Exception e) {
+            entries.clear();
+            revisions.clear();
+            LoaderBackend.getLogger().warning("Failed to load the discovery index, it will be rebuilt: " + e.getMessage());
+        }
+    }
+
+    private static final class Entry {
+        private final FileStamp stamp;
+        private final PluginInfo pluginInfo;
+
+        private Entry(FileStamp stamp, PluginInfo pluginInfo) {
+            this.stamp = stamp;
+            this.pluginInfo = pluginInfo;
+        }
+    }
+
+    private static final class Revision {
+        private final String hash;
+        private final long revision;
+
+        private Revision(String hash, long revision) {
+            this.hash = hash;
+            this.revision = revision;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package dev.al3mid3x.discovery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identifies one version of a file on disk by its file key (the inode on most systems), size and
+ * modification time with the full precision the filesystem offers. A JAR whose stamp didn't change
+ * is assumed to still have the digest that was computed for it.
+ */
+final class FileStamp {
+
+    private final String fileKey;
+    private final long size;
+    private final long modifiedNanos;
+
+    FileStamp(String fileKey, long size, long modifiedNanos) {
+        this.fileKey = fileKey;
+        this.size = size;
+        this.modifiedNanos = modifiedNanos;
+    }
+
+    /**
+     * @return The current stamp of the provided file, or {@code null} if it can't be read.
+     */
+    static FileStamp of(final File file) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            final Object fileKey = attributes.fileKey();
+            return new FileStamp(fileKey == null ? null : fileKey.toString(),
+                    attributes.size(),
+                    attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    String fileKey() {
+        return fileKey;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long modifiedNanos() {
+        return modifiedNanos;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FileStamp)) return false;
+        final FileStamp other = (FileStamp) o;
+        return size == other.size && modifiedNanos == other.modifiedNanos && Objects.equals(fileKey, other.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fileKey, size, modifiedNanos);
+    }
+}
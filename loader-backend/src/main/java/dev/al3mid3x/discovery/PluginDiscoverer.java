@@ -1,24 +1,84 @@
 package dev.al3mid3x.discovery;
 
 import me.akraml.loader.LoaderBackend;
+import me.akraml.loader.utility.FileUtils;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
 /**
  * Scans a directory for plugin JARs and discovers their information.
+ * <p>
+ * JARs in a sub-directory belong to the server group named after it, and a plugin.yml can add more groups under
+ * {@link #GROUPS_KEY}. Plugins without any group are served to every server.
+ * <p>
+ * Inspected JARs are remembered in a {@link DiscoveryIndex}, so only new or changed JARs are opened again,
+ * and those are inspected in parallel on a bounded worker pool.
  */
 public final class PluginDiscoverer {
 
+    /**
+     * The plugin.yml keys kept in {@link PluginInfo#description()} and in the discovery index.
+     */
+    public static final List<String> DESCRIPTION_KEYS = Collections.unmodifiableList(Arrays.asList(
+            "name", "main", "version", "depend", "softdepend", "loadbefore"));
+
+    /**
+     * The plugin.yml key listing the server groups a plugin is served to, on top of the one of its directory.
+     */
+    public static final String GROUPS_KEY = "loader-groups";
+
     private final File pluginDirectory;
+    private final DiscoveryIndex index;
+    private final ExecutorService inspectionPool;
+
+    private volatile int lastIndexHits;
+    private volatile int lastInspections;
 
-    public PluginDiscoverer(String directoryPath) {
-        this.pluginDirectory = new File(directoryPath);
+    /**
+     * @param directoryPath Path of the directory holding the plugin JARs.
+     * @param indexFile     File the discovery index is persisted in.
+     * @param threads       Maximum number of JARs inspected at the same time.
+     */
+    public PluginDiscoverer(String directoryPath, File indexFile, int threads) {
+        // Absolute, so files from a scan, the index and the watcher always compare equal.
+        this.pluginDirectory = new File(directoryPath).getAbsoluteFile();
+        this.index = new DiscoveryIndex(indexFile);
+        this.inspectionPool = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    public File getPluginDirectory() {
+        return pluginDirectory;
+    }
+
+    /**
+     * @return How many plugins of the last scan were taken from the discovery index.
+     */
+    public int getLastIndexHits() {
+        return lastIndexHits;
+    }
+
+    /**
+     * @return How many JARs of the last scan had to be opened and inspected.
+     */
+    public int getLastInspections() {
+        return lastInspections;
     }
 
     public Map<String, PluginInfo> discoverPlugins() {
@@ -28,39 +88,145 @@ public final class PluginDiscoverer {
             return discoveredPlugins;
         }
 
-        final File[] files = pluginDirectory.listFiles((dir, name) -> name.endsWith(".jar"));
-        if (files == null || files.length == 0) {
+        final List<File> files = listJars();
+        if (files.isEmpty()) {
             LoaderBackend.getLogger().info("No plugins found in " + pluginDirectory.getAbsolutePath());
             return discoveredPlugins;
         }
 
-        final Yaml yaml = new Yaml();
+        final Set<String> paths = new HashSet<>();
+        final List<Future<PluginInfo>> inspections = new ArrayList<>();
+        int indexHits = 0;
         for (final File file : files) {
-            try (final JarFile jarFile = new JarFile(file)) {
-                final ZipEntry pluginYmlEntry = jarFile.getEntry("plugin.yml");
-                if (pluginYmlEntry == null) {
-                    LoaderBackend.getLogger().warning("Could not find plugin.yml in " + file.getName() + ", skipping...");
-                    continue;
-                }
+            paths.add(file.getAbsolutePath());
+            final PluginInfo indexed = index.lookup(file);
+            if (indexed != null) {
+                putUnique(discoveredPlugins, indexed);
+                indexHits++;
+            } else {
+                inspections.add(inspectionPool.submit(() -> inspect(file)));
+            }
+        }
 
-                try (final InputStream inputStream = jarFile.getInputStream(pluginYmlEntry)) {
-                    final Map<String, Object> pluginInfoMap = yaml.load(inputStream);
-                    final String name = (String) pluginInfoMap.get("name");
-                    final String mainClass = (String) pluginInfoMap.get("main");
+        for (final Future<PluginInfo> inspection : inspections) {
+            try {
+                final PluginInfo pluginInfo = inspection.get();
+                if (pluginInfo != null) putUnique(discoveredPlugins, pluginInfo);
+            } catch (Exception e) {
+                LoaderBackend.getLogger().severe("Failed to inspect a plugin JAR: " + e.getMessage());
+            }
+        }
 
-                    if (name == null || mainClass == null) {
-                        LoaderBackend.getLogger().warning("Invalid plugin.yml in " + file.getName() + ": missing 'name' or 'main' key.");
-                        continue;
-                    }
+        lastIndexHits = indexHits;
+        lastInspections = inspections.size();
+        index.retainOnly(paths);
+        index.save();
+        return discoveredPlugins;
+    }
+
+    /**
+     * @return The JARs at the top of the plugin directory and in its group directories, one level down.
+     */
+    private List<File> listJars() {
+        final List<File> jars = new ArrayList<>();
+        final File[] files = pluginDirectory.listFiles();
+        if (files == null) return jars;
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                final File[] groupJars = file.listFiles((dir, name) -> name.endsWith(".jar"));
+                if (groupJars != null) jars.addAll(Arrays.asList(groupJars));
+            } else if (file.getName().endsWith(".jar")) {
+                jars.add(file);
+            }
+        }
+        return jars;
+    }
 
-                    final PluginInfo pluginInfo = new PluginInfo(name, mainClass, file);
-                    discoveredPlugins.put(name.toLowerCase(), pluginInfo);
-                    LoaderBackend.getLogger().info("Discovered plugin: " + name + " (main: " + mainClass + ")");
+    private static void putUnique(final Map<String, PluginInfo> plugins, final PluginInfo pluginInfo) {
+        final PluginInfo previous = plugins.put(pluginInfo.name().toLowerCase(), pluginInfo);
+        if (previous != null) {
+            LoaderBackend.getLogger().warning("Plugin " + pluginInfo.name() + " is provided by both " + previous.file().getPath() + " and "
+                    + pluginInfo.file().getPath() + ", only one of them is served. Use " + GROUPS_KEY + " to serve a plugin to several groups.");
+        }
+    }
+
+    /**
+     * Inspects a single plugin JAR, reusing its index entry if it didn't change.
+     *
+     * @param file The JAR to inspect.
+     * @return The plugin's information, or {@code null} if the file isn't a valid plugin.
+     */
+    public PluginInfo lookupOrInspect(final File file) {
+        final PluginInfo indexed = index.lookup(file);
+        if (indexed != null) return indexed;
+
+        final PluginInfo pluginInfo = inspect(file);
+        index.save();
+        return pluginInfo;
+    }
+
+    public void shutdown() {
+        inspectionPool.shutdownNow();
+    }
+
+    private PluginInfo inspect(final File file) {
+        // Taken before hashing, so a write racing with the inspection makes the stamp outdated.
+        final FileStamp stamp = FileStamp.of(file);
+        if (stamp == null) return null;
+
+        try (final JarFile jarFile = new JarFile(file)) {
+            final ZipEntry pluginYmlEntry = jarFile.getEntry("plugin.yml");
+            if (pluginYmlEntry == null) {
+                LoaderBackend.getLogger().warning("Could not find plugin.yml in " + file.getName() + ", skipping...");
+                return null;
+            }
+
+            try (final InputStream inputStream = jarFile.getInputStream(pluginYmlEntry)) {
+                final Map<String, Object> pluginInfoMap = new Yaml().load(inputStream);
+                final String name = (String) pluginInfoMap.get("name");
+                final String mainClass = (String) pluginInfoMap.get("main");
+
+                if (name == null || mainClass == null) {
+                    LoaderBackend.getLogger().warning("Invalid plugin.yml in " + file.getName() + ": missing 'name' or 'main' key.");
+                    return null;
                 }
-            } catch (Exception e) {
-                LoaderBackend.getLogger().severe("Failed to process JAR file " + file.getName() + ": " + e.getMessage());
+
+                final Map<String, Object> description = new LinkedHashMap<>();
+                for (final String key : DESCRIPTION_KEYS) {
+                    final Object value = pluginInfoMap.get(key);
+                    // Versions like 1.0 are parsed as numbers, keep them as written.
+                    if (value != null) description.put(key, key.equals("version") ? value.toString() : value);
+                }
+
+                final String hash = FileUtils.sha256Hex(file);
+                final PluginInfo pluginInfo = new PluginInfo(name, mainClass, file, hash, stamp.size(), index.revisionOf(name, hash),
+                        description, groupsOf(file, pluginInfoMap.get(GROUPS_KEY)));
+                index.record(pluginInfo, stamp);
+                LoaderBackend.getLogger().info("Discovered plugin: " + name + " (main: " + mainClass + ", revision " + pluginInfo.revision()
+                        + (pluginInfo.groups().isEmpty() ? "" : ", groups " + pluginInfo.groups()) + ")");
+                return pluginInfo;
             }
+        } catch (Exception e) {
+            LoaderBackend.getLogger().severe("Failed to process JAR file " + file.getName() + ": " + e.getMessage());
+            return null;
         }
-        return discoveredPlugins;
+    }
+
+    /**
+     * @param tags The value of {@link #GROUPS_KEY} in the plugin.yml, a list or a single group.
+     * @return The groups of the JAR: the one of its directory, if it's in a sub-directory, and its tags.
+     */
+    private Set<String> groupsOf(final File file, final Object tags) {
+        final Set<String> groups = new TreeSet<>();
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.equals(pluginDirectory)) groups.add(directory.getName().toLowerCase());
+        if (tags instanceof List) {
+            for (Object tag : (List<?>) tags) {
+                groups.add(String.valueOf(tag).toLowerCase());
+            }
+        } else if (tags != null) {
+            groups.add(tags.toString().toLowerCase());
+        }
+        return groups;
     }
 }
@@ -1,6 +1,11 @@
 package dev.al3mid3x.discovery;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A class to hold discovered information about a plugin JAR.
@@ -10,11 +15,22 @@ public final class PluginInfo {
     private final String name;
     private final String mainClass;
     private final File file;
+    private final String hash;
+    private final long size;
+    private final long revision;
+    private final Map<String, Object> description;
+    private final Set<String> groups;
 
-    public PluginInfo(String name, String mainClass, File file) {
+    public PluginInfo(String name, String mainClass, File file, String hash, long size, long revision,
+                      Map<String, Object> description, Set<String> groups) {
         this.name = name;
         this.mainClass = mainClass;
         this.file = file;
+        this.hash = hash;
+        this.size = size;
+        this.revision = revision;
+        this.description = Collections.unmodifiableMap(description);
+        this.groups = Collections.unmodifiableSet(groups);
     }
 
     public String name() {
@@ -29,12 +45,95 @@ public final class PluginInfo {
         return file;
     }
 
+    /**
+     * @return The lowercase hexadecimal SHA-256 digest of the JAR's content.
+     */
+    public String hash() {
+        return hash;
+    }
+
+    /**
+     * @return The size of the JAR in bytes, as it was when it was hashed.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return The build number of this plugin, raised by one every time its content hash changes.
+     */
+    public long revision() {
+        return revision;
+    }
+
+    /**
+     * @return The plugin.yml fields kept by the discoverer, see {@link PluginDiscoverer#DESCRIPTION_KEYS}.
+     */
+    public Map<String, Object> description() {
+        return description;
+    }
+
+    /**
+     * @return The lowercase names of the server groups this plugin is served to, empty if it's served to every server.
+     */
+    public Set<String> groups() {
+        return groups;
+    }
+
+    /**
+     * @param serverGroups The groups a server declared, empty for a server that wants every plugin.
+     * @return Whether this plugin is served to a server of the provided groups.
+     */
+    public boolean servedTo(Set<String> serverGroups) {
+        if (groups.isEmpty() || serverGroups.isEmpty()) return true;
+        for (String group : serverGroups) {
+            if (groups.contains(group)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The plugin's version as declared in its plugin.yml, or {@code null} if it has none.
+     */
+    public String version() {
+        final Object version = description.get("version");
+        return version == null ? null : version.toString();
+    }
+
+    /**
+     * @return The string list stored under the provided plugin.yml key, empty if it's missing.
+     */
+    public List<String> stringList(String key) {
+        final Object value = description.get(key);
+        final List<String> list = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                list.add(String.valueOf(element));
+            }
+        } else if (value != null) {
+            list.add(value.toString());
+        }
+        return list;
+    }
+
+    /**
+     * @return A key identifying this exact build of the plugin, used to tell cached artifacts apart.
+     * It only depends on the content, so touching or re-uploading an identical JAR keeps its artifacts.
+     */
+    public String identity() {
+        return name.toLowerCase() + '@' + hash;
+    }
+
     @Override
     public String toString() {
         return "PluginInfo[" +
                 "name='" + name + '\'' +
                 ", mainClass='" + mainClass + '\'' +
                 ", file=" + file.getName() +
+                ", hash=" + hash.substring(0, 12) +
+                ", size=" + size +
+                ", revision=" + revision +
+                ", groups=" + groups +
                 ']';
     }
 }
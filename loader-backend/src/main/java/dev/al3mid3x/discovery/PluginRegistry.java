@@ -0,0 +1,177 @@
+package dev.al3mid3x.discovery;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * The plugins served by the backend, published as immutable {@link Snapshot}s. Writers build a new map and
+ * {@link #publish(Map)} it, which swaps the current snapshot atomically, so readers never lock and every
+ * manifest and every fetch is served from exactly one consistent generation. A fetch is served from the
+ * generation current once it's admitted, clients whose manifest is older by then ask for the changes since.
+ * <p>
+ * The last {@value #HISTORY} generations are kept, so a client can be sent only the changes since the generation
+ * it synced last. Generations restart with the backend, the {@link #epoch()} tells runs apart.
+ * <p>
+ * Servers only see the {@link Snapshot#view(Set) view} of a snapshot for the groups they declared, with the same
+ * generation, so the changes between two generations are told apart per group too.
+ */
+public final class PluginRegistry {
+
+    public static final int HISTORY = 64;
+    /** Group views remembered per snapshot, more distinct group sets are filtered again on every request. */
+    private static final int MAX_VIEWS = 256;
+
+    private final long epoch = new SecureRandom().nextLong();
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(0, Collections.<String, PluginInfo>emptyMap()));
+    private final Map<Long, Snapshot> history = new ConcurrentHashMap<>();
+    private final List<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return A random number identifying this run of the backend.
+     */
+    public long epoch() {
+        return epoch;
+    }
+
+    public Snapshot current() {
+        return current.get();
+    }
+
+    /**
+     * @return The snapshot of the provided generation, or {@code null} if it's too old or never existed.
+     */
+    public Snapshot snapshot(final long generation) {
+        final Snapshot snapshot = current.get();
+        return snapshot.generation == generation ? snapshot : history.get(generation);
+    }
+
+    /**
+     * Runs the provided listener with every new generation, on the thread publishing it.
+     */
+    public void addListener(final Consumer<Snapshot> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Publishes the provided plugins, keyed by lowercase name. If any client would see a different build, they
+     * become a new generation, otherwise they only replace the current snapshot (such as when a JAR was renamed).
+     *
+     * @return The published snapshot.
+     */
+    public synchronized Snapshot publish(final Map<String, PluginInfo> plugins) {
+        final Snapshot previous = current.get();
+        final Map<String, PluginInfo> sorted = Collections.unmodifiableMap(new TreeMap<>(plugins));
+        if (previous.generation > 0 && sameBuilds(previous.plugins, sorted)) {
+            final Snapshot replacement = new Snapshot(previous.generation, sorted);
+            current.set(replacement);
+            history.put(replacement.generation, replacement);
+            return replacement;
+        }
+
+        final Snapshot snapshot = new Snapshot(previous.generation + 1, sorted);
+        history.put(snapshot.generation, snapshot);
+        history.remove(snapshot.generation - HISTORY);
+        current.set(snapshot);
+        for (Consumer<Snapshot> listener : listeners) {
+            listener.accept(snapshot);
+        }
+        return snapshot;
+    }
+
+    private static boolean sameBuilds(final Map<String, PluginInfo> a, final Map<String, PluginInfo> b) {
+        if (a.size() != b.size()) return false;
+        for (Map.Entry<String, PluginInfo> entry : a.entrySet()) {
+            final PluginInfo other = b.get(entry.getKey());
+            if (other == null || !other.identity().equals(entry.getValue().identity())) return false;
+            // A plugin moved to other groups appears or disappears for some servers.
+            if (!other.groups().equals(entry.getValue().groups())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * One generation of the registry.
+     */
+    public static final class Snapshot {
+
+        private final long generation;
+        private final Map<String, PluginInfo> plugins;
+        private final Map<Set<String>, Snapshot> views = new ConcurrentHashMap<>();
+
+        private Snapshot(long generation, Map<String, PluginInfo> plugins) {
+            this.generation = generation;
+            this.plugins = plugins;
+        }
+
+        public long generation() {
+            return generation;
+        }
+
+        /**
+         * @return The plugins keyed by lowercase name, in name order.
+         */
+        public Map<String, PluginInfo> plugins() {
+            return plugins;
+        }
+
+        public int size() {
+            return plugins.size();
+        }
+
+        /**
+         * @param groups The lowercase groups a server declared, empty for a server that wants every plugin.
+         * @return The plugins of this snapshot served to a server of the provided groups, as a snapshot of the same
+         * generation. Views are built once and kept with the snapshot.
+         */
+        public Snapshot view(final Set<String> groups) {
+            if (groups.isEmpty()) return this;
+            final Snapshot cached = views.get(groups);
+            if (cached != null) return cached;
+
+            final Map<String, PluginInfo> served = new TreeMap<>();
+            for (Map.Entry<String, PluginInfo> entry : plugins.entrySet()) {
+                if (entry.getValue().servedTo(groups)) served.put(entry.getKey(), entry.getValue());
+            }
+            final Snapshot view = new Snapshot(generation, Collections.unmodifiableMap(served));
+            if (views.size() < MAX_VIEWS) views.putIfAbsent(groups, view);
+            return view;
+        }
+
+        /**
+         * @return The plugins that are new or have another build than in the provided older snapshot.
+         */
+        public List<PluginInfo> changedSince(final Snapshot older) {
+            final List<PluginInfo> changed = new ArrayList<>();
+            for (Map.Entry<String, PluginInfo> entry : plugins.entrySet()) {
+                final PluginInfo previous = older.plugins.get(entry.getKey());
+                if (previous == null || !previous.identity().equals(entry.getValue().identity())) changed.add(entry.getValue());
+            }
+            return changed;
+        }
+
+        /**
+         * @return The names of the plugins of the provided older snapshot that are gone from this one.
+         */
+        public List<String> removedSince(final Snapshot older) {
+            final List<String> removed = new ArrayList<>();
+            for (PluginInfo previous : older.plugins.values()) {
+                if (!plugins.containsKey(previous.name().toLowerCase())) removed.add(previous.name());
+            }
+            return removed;
+        }
+
+        public Collection<PluginInfo> values() {
+            return plugins.values();
+        }
+    }
+}
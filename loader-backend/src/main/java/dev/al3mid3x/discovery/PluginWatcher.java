@@ -0,0 +1,173 @@
+package dev.al3mid3x.discovery;
+
+import me.akraml.loader.LoaderBackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the plugin directory and reports which JARs were created, modified or deleted.
+ * <p>
+ * Events are debounced per file: a JAR is only reported once it hasn't changed for the debounce window,
+ * so a file that's still being copied is never inspected half-written. The group directories one level down are
+ * watched too, and creating, deleting or renaming one of them asks for a rescan.
+ */
+public final class PluginWatcher {
+
+    private final Path directory;
+    private final long debounceMillis;
+    private final Listener listener;
+    private final WatchService watchService;
+    private final Map<Path, Long> pendingChanges = new HashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private long directoriesChangedAt = -1;
+    private Thread thread;
+
+    public PluginWatcher(final File directory, final long debounceMillis, final Listener listener) throws IOException {
+        this.directory = directory.toPath();
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        register(this.directory);
+        try (final DirectoryStream<Path> groupDirectories = Files.newDirectoryStream(this.directory, Files::isDirectory)) {
+            for (final Path groupDirectory : groupDirectories) {
+                register(groupDirectory);
+            }
+        }
+    }
+
+    private void register(final Path watched) throws IOException {
+        watchedDirectories.put(watched.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE), watched);
+    }
+
+    public void start() {
+        thread = new Thread(this::watch, "plugin-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LoaderBackend.getLogger().warning("Failed to close the plugin watcher: " + e.getMessage());
+        }
+        if (thread != null) thread.interrupt();
+    }
+
+    private void watch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final WatchKey key = watchService.poll(Math.max(50, debounceMillis / 4), TimeUnit.MILLISECONDS);
+                final Path watched = key == null ? null : watchedDirectories.get(key);
+                if (watched != null) {
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            pendingChanges.clear();
+                            listener.onOverflow();
+                            continue;
+                        }
+                        final Path path = watched.resolve((Path) event.context());
+                        if (path.toString().endsWith(".jar")) {
+                            pendingChanges.put(path, System.currentTimeMillis());
+                        } else if (watched.equals(directory)) {
+                            onDirectoryEvent(event, path);
+                        }
+                    }
+                    if (!key.reset()) {
+                        watchedDirectories.remove(key);
+                        if (watched.equals(directory)) {
+                            LoaderBackend.getLogger().warning("Plugin directory is no longer accessible, file watching stopped.");
+                            return;
+                        }
+                    }
+                }
+                flushSettledChanges();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        } catch (Exception e) {
+            LoaderBackend.getLogger().severe("Plugin watcher stopped after an error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A group directory that was created or moved in may already hold JARs, and one that was moved away doesn't
+     * report the JARs it took along, so both only schedule a rescan.
+     */
+    private void onDirectoryEvent(final WatchEvent<?> event, final Path path) {
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+            try {
+                register(path);
+            } catch (IOException e) {
+                LoaderBackend.getLogger().warning("Failed to watch group directory " + path.getFileName() + ": " + e.getMessage());
+            }
+            directoriesChangedAt = System.currentTimeMillis();
+        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            // Whether it was a directory can't be told anymore, a rescan of anything else finds nothing new.
+            final Iterator<Map.Entry<WatchKey, Path>> iterator = watchedDirectories.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<WatchKey, Path> entry = iterator.next();
+                if (entry.getValue().equals(path)) {
+                    entry.getKey().cancel();
+                    iterator.remove();
+                }
+            }
+            directoriesChangedAt = System.currentTimeMillis();
+        }
+    }
+
+    private void flushSettledChanges() {
+        final long now = System.currentTimeMillis();
+        if (directoriesChangedAt >= 0 && now - directoriesChangedAt >= debounceMillis) {
+            directoriesChangedAt = -1;
+            listener.onDirectoriesChanged();
+        }
+        final Set<File> settled = new HashSet<>();
+        final Iterator<Map.Entry<Path, Long>> iterator = pendingChanges.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Path, Long> entry = iterator.next();
+            if (now - entry.getValue() >= debounceMillis) {
+                settled.add(entry.getKey().toFile());
+                iterator.remove();
+            }
+        }
+        if (!settled.isEmpty()) listener.onFilesChanged(settled);
+    }
+
+    public interface Listener {
+
+        /**
+         * Called with every JAR that changed and then stayed untouched for the debounce window.
+         * Deleted files are reported too, they just don't exist anymore.
+         */
+        void onFilesChanged(Set<File> files);
+
+        /**
+         * Called when the file system dropped events, the whole directory must be rescanned.
+         */
+        void onOverflow();
+
+        /**
+         * Called when a group directory was created, deleted or renamed, the whole directory must be rescanned.
+         */
+        void onDirectoriesChanged();
+    }
+}
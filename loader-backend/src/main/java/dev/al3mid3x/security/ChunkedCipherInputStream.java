@@ -0,0 +1,141 @@
+package dev.al3mid3x.security;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.CHUNK_SIZE;
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.FINAL_CHUNK_FLAG;
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.PREFIX_LENGTH;
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.TAG_LENGTH;
+
+/**
+ * Decrypts a stream written by {@link ChunkedCipherOutputStream} one chunk at a time, verifying each chunk
+ * before any of its bytes are returned. It stops reading right after the final chunk, so it can be used on a
+ * stream that carries more data afterwards.
+ * <p>
+ * A stream can also be resumed in the middle: given the header of the original stream, it decrypts a stream
+ * that starts with the provided chunk.
+ */
+public final class ChunkedCipherInputStream extends FilterInputStream {
+
+    private final Key key;
+    private final Cipher cipher;
+    private final byte[] noncePrefix = new byte[PREFIX_LENGTH];
+    private final byte[] sealed = new byte[CHUNK_SIZE + TAG_LENGTH];
+    private final byte[] plain = new byte[CHUNK_SIZE];
+    private boolean headerRead;
+    private boolean finalChunkRead;
+    private int plainLength;
+    private int plainPosition;
+    private int chunkIndex;
+
+    ChunkedCipherInputStream(InputStream in, Key key) throws IOException {
+        super(in);
+        this.key = key;
+        try {
+            this.cipher = Cipher.getInstance(ChunkedCipherOutputStream.TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES/GCM is not available", e);
+        }
+    }
+
+    ChunkedCipherInputStream(InputStream in, Key key, byte[] header, int firstChunk) throws IOException {
+        this(in, key);
+        if (header.length != ChunkedCipherOutputStream.HEADER_LENGTH || header[0] != ChunkedCipherOutputStream.VERSION) {
+            throw new IOException("Unsupported payload header");
+        }
+        System.arraycopy(header, 1, noncePrefix, 0, PREFIX_LENGTH);
+        this.headerRead = true;
+        this.chunkIndex = firstChunk;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (plainPosition == plainLength) {
+            if (finalChunkRead) return -1;
+            openNextChunk();
+        }
+        final int copied = Math.min(len, plainLength - plainPosition);
+        System.arraycopy(plain, plainPosition, b, off, copied);
+        plainPosition += copied;
+        return copied;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        final byte[] discard = new byte[(int) Math.min(n, 8192)];
+        while (skipped < n) {
+            final int read = read(discard, 0, (int) Math.min(n - skipped, discard.length));
+            if (read == -1) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return plainLength - plainPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void openNextChunk() throws IOException {
+        if (!headerRead) {
+            final int version = in.read();
+            if (version != ChunkedCipherOutputStream.VERSION) throw new IOException("Unsupported payload format " + version);
+            readFully(noncePrefix, PREFIX_LENGTH);
+            headerRead = true;
+        }
+
+        final byte[] headerBytes = new byte[4];
+        readFully(headerBytes, 4);
+        final int header = ((headerBytes[0] & 0xFF) << 24) | ((headerBytes[1] & 0xFF) << 16)
+                | ((headerBytes[2] & 0xFF) << 8) | (headerBytes[3] & 0xFF);
+        final boolean last = (header & FINAL_CHUNK_FLAG) != 0;
+        final int sealedLength = header & ~FINAL_CHUNK_FLAG;
+        if (sealedLength < TAG_LENGTH || sealedLength > sealed.length) {
+            throw new IOException("Invalid length " + sealedLength + " for chunk " + chunkIndex);
+        }
+        readFully(sealed, sealedLength);
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8,
+                    ChunkedCipherOutputStream.nonce(noncePrefix, chunkIndex, last)));
+            plainLength = cipher.doFinal(sealed, 0, sealedLength, plain, 0);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Chunk " + chunkIndex + " failed authentication, the payload is corrupted or tampered with");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt chunk " + chunkIndex, e);
+        }
+        plainPosition = 0;
+        finalChunkRead = last;
+        chunkIndex++;
+    }
+
+    private void readFully(final byte[] buffer, final int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int count = in.read(buffer, read, length - read);
+            if (count == -1) throw new EOFException("Payload ended before its final chunk");
+            read += count;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package dev.al3mid3x.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+
+/**
+ * Encrypts a stream into fixed-size chunks sealed with AES/GCM, so neither side has to hold a whole
+ * payload in memory and any corruption is detected at the chunk it happens in.
+ * <p>
+ * The stream starts with a version byte and a random 7-byte nonce prefix. Every chunk is then written as
+ * an {@code int} header holding its sealed length, with {@link #FINAL_CHUNK_FLAG} set on the last one,
+ * followed by the sealed bytes. The nonce of a chunk is the prefix, the chunk index and the final flag,
+ * so chunks can't be reordered, dropped or truncated without failing authentication.
+ */
+public final class ChunkedCipherOutputStream extends FilterOutputStream {
+
+    static final byte VERSION = 1;
+    public static final int CHUNK_SIZE = 64 * 1024;
+    static final int TAG_LENGTH = 16;
+    static final int PREFIX_LENGTH = 7;
+    /** Length of the version byte and nonce prefix the stream starts with. */
+    public static final int HEADER_LENGTH = 1 + PREFIX_LENGTH;
+    /** Length of a sealed full chunk with its header, every chunk but the last one starts at a multiple of it. */
+    public static final int SEALED_CHUNK_STRIDE = 4 + CHUNK_SIZE + TAG_LENGTH;
+    static final int FINAL_CHUNK_FLAG = 0x80000000;
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Key key;
+    private final Cipher cipher;
+    private final byte[] noncePrefix = new byte[PREFIX_LENGTH];
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private final byte[] sealed = new byte[CHUNK_SIZE + TAG_LENGTH];
+    private int chunkLength;
+    private int chunkIndex;
+    private boolean finished;
+
+    ChunkedCipherOutputStream(OutputStream out, Key key) throws IOException {
+        super(out);
+        this.key = key;
+        try {
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES/GCM is not available", e);
+        }
+        RANDOM.nextBytes(noncePrefix);
+        out.write(VERSION);
+        out.write(noncePrefix);
+    }
+
+    /**
+     * @return The exact encrypted length of a plaintext of the provided length, header included.
+     */
+    public static long encryptedLength(final long plainLength) {
+        final long chunks = Math.max(1, (plainLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        return 1 + PREFIX_LENGTH + chunks * (4 + TAG_LENGTH) + plainLength;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("Stream already finished");
+        while (len > 0) {
+            // A full chunk is only sealed once more data arrives, so the last one can carry the final flag.
+            if (chunkLength == CHUNK_SIZE) sealChunk(false);
+            final int copied = Math.min(len, CHUNK_SIZE - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, copied);
+            chunkLength += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    /**
+     * Seals the final chunk without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        sealChunk(true);
+        finished = true;
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void sealChunk(final boolean last) throws IOException {
+        final int sealedLength;
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(noncePrefix, chunkIndex, last)));
+            sealedLength = cipher.doFinal(chunk, 0, chunkLength, sealed, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt chunk " + chunkIndex, e);
+        }
+        final int header = last ? sealedLength | FINAL_CHUNK_FLAG : sealedLength;
+        out.write(header >>> 24);
+        out.write(header >>> 16);
+        out.write(header >>> 8);
+        out.write(header);
+        out.write(sealed, 0, sealedLength);
+        chunkIndex++;
+        chunkLength = 0;
+    }
+
+    static byte[] nonce(final byte[] prefix, final int chunkIndex, final boolean last) {
+        final byte[] nonce = new byte[12];
+        System.arraycopy(prefix, 0, nonce, 0, PREFIX_LENGTH);
+        nonce[7] = (byte) (chunkIndex >>> 24);
+        nonce[8] = (byte) (chunkIndex >>> 16);
+        nonce[9] = (byte) (chunkIndex >>> 8);
+        nonce[10] = (byte) chunkIndex;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+}
@@ -0,0 +1,168 @@
+package dev.al3mid3x.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.CHUNK_SIZE;
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.FINAL_CHUNK_FLAG;
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.HEADER_LENGTH;
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.PREFIX_LENGTH;
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.SEALED_CHUNK_STRIDE;
+import static dev.al3mid3x.security.ChunkedCipherOutputStream.TAG_LENGTH;
+
+/**
+ * Produces the same format as {@link ChunkedCipherOutputStream}, but seals the chunks in parallel on a
+ * fork-join pool. Every chunk has its own nonce and a fixed position in the output, so chunks are independent
+ * and written straight to their final offset, no reassembly needed.
+ * <p>
+ * Each worker thread keeps its own {@link Cipher} and scratch buffer, so nothing is allocated per chunk.
+ */
+public final class ParallelChunkCipher {
+
+    private static final int CHUNKS_PER_TASK = 4;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Key key;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ChunkedCipherOutputStream.TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+    private final ThreadLocal<ByteBuffer> scratchBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(SEALED_CHUNK_STRIDE));
+
+    /**
+     * @param encryptionUtil The encryption util holding the key to use.
+     * @param threads        Number of worker threads, or 0 to use every available core.
+     */
+    public ParallelChunkCipher(final EncryptionUtil encryptionUtil, final int threads) {
+        this.key = encryptionUtil.key();
+        this.pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Encrypts the remaining bytes of the provided buffer into a new array.
+     */
+    public byte[] encrypt(final ByteBuffer plaintext) throws IOException {
+        final long encryptedLength = ChunkedCipherOutputStream.encryptedLength(plaintext.remaining());
+        if (encryptedLength > Integer.MAX_VALUE) throw new IOException("Payload too large to encrypt in memory");
+
+        final byte[] output = new byte[(int) encryptedLength];
+        final byte[] noncePrefix = writeHeader(ByteBuffer.wrap(output, 0, HEADER_LENGTH));
+        run(plaintext, noncePrefix, (offset, sealedChunk) ->
+                sealedChunk.get(output, (int) offset, sealedChunk.remaining()));
+        return output;
+    }
+
+    /**
+     * Encrypts the remaining bytes of the provided buffer at the start of the provided file,
+     * with positional writes from every worker.
+     */
+    public void encrypt(final ByteBuffer plaintext, final FileChannel target) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        final byte[] noncePrefix = writeHeader(header);
+        header.flip();
+        writeFully(target, header, 0);
+        run(plaintext, noncePrefix, (offset, sealedChunk) -> writeFully(target, sealedChunk, offset));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private byte[] writeHeader(final ByteBuffer header) {
+        final byte[] noncePrefix = new byte[PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        header.put(ChunkedCipherOutputStream.VERSION).put(noncePrefix);
+        return noncePrefix;
+    }
+
+    private void run(final ByteBuffer plaintext, final byte[] noncePrefix, final ChunkSink sink) throws IOException {
+        final int plainLength = plaintext.remaining();
+        final int chunks = Math.max(1, (plainLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        try {
+            pool.invoke(new SealTask(plaintext.slice(), noncePrefix, chunks, 0, chunks, sink));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeFully(final FileChannel target, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += target.write(buffer, position);
+        }
+    }
+
+    private interface ChunkSink {
+        void accept(long offset, ByteBuffer sealedChunk) throws IOException;
+    }
+
+    private final class SealTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer plaintext;
+        private final byte[] noncePrefix;
+        private final int totalChunks;
+        private final int from;
+        private final int to;
+        private final ChunkSink sink;
+
+        private SealTask(ByteBuffer plaintext, byte[] noncePrefix, int totalChunks, int from, int to, ChunkSink sink) {
+            this.plaintext = plaintext;
+            this.noncePrefix = noncePrefix;
+            this.totalChunks = totalChunks;
+            this.from = from;
+            this.to = to;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNKS_PER_TASK) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new SealTask(plaintext, noncePrefix, totalChunks, from, middle, sink),
+                        new SealTask(plaintext, noncePrefix, totalChunks, middle, to, sink));
+                return;
+            }
+            for (int index = from; index < to; index++) {
+                sealChunk(index);
+            }
+        }
+
+        private void sealChunk(final int index) {
+            final boolean last = index == totalChunks - 1;
+            final ByteBuffer input = plaintext.duplicate();
+            input.position(index * CHUNK_SIZE);
+            input.limit(Math.min(input.capacity(), (index + 1) * CHUNK_SIZE));
+
+            final ByteBuffer scratch = scratchBuffers.get();
+            scratch.clear();
+            try {
+                final Cipher cipher = ciphers.get();
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8,
+                        ChunkedCipherOutputStream.nonce(noncePrefix, index, last)));
+                scratch.position(4);
+                final int sealedLength = cipher.doFinal(input, scratch);
+                scratch.putInt(0, last ? sealedLength | FINAL_CHUNK_FLAG : sealedLength);
+                scratch.flip();
+                sink.accept(HEADER_LENGTH + (long) index * SEALED_CHUNK_STRIDE, scratch);
+            } catch (GeneralSecurityException e) {
+                throw new UncheckedIOException(new IOException("Failed to encrypt chunk " + index, e));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
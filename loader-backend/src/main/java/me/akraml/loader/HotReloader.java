@@ -0,0 +1,140 @@
+package me.akraml.loader;
+
+import dev.al3mid3x.discovery.PluginDiscoverer;
+import dev.al3mid3x.discovery.PluginInfo;
+import dev.al3mid3x.discovery.PluginRegistry;
+import dev.al3mid3x.discovery.PluginWatcher;
+import me.akraml.loader.server.ArtifactStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the plugin registry in line with the plugin directory. Changes reported by the {@link PluginWatcher}
+ * only re-inspect the affected files, while {@link #reconcile()} rescans the whole directory as a safety net.
+ * Every pass works on a copy of the current snapshot and publishes it as a whole, so clients never see half
+ * of a pass.
+ */
+public final class HotReloader implements PluginWatcher.Listener {
+
+    private final PluginDiscoverer discoverer;
+    private final PluginRegistry pluginRegistry;
+    private final ArtifactStore artifactStore;
+
+    public HotReloader(final PluginDiscoverer discoverer,
+                       final PluginRegistry pluginRegistry,
+                       final ArtifactStore artifactStore) {
+        this.discoverer = discoverer;
+        this.pluginRegistry = pluginRegistry;
+        this.artifactStore = artifactStore;
+    }
+
+    /**
+     * Rescans the whole plugin directory and applies every difference to the registry.
+     */
+    public synchronized void reconcile() {
+        final Map<String, PluginInfo> discoveredPlugins = discoverer.discoverPlugins();
+        final Map<String, PluginInfo> plugins = new HashMap<>(pluginRegistry.current().plugins());
+
+        boolean changed = false;
+
+        // Unload plugins that are no longer present
+        for (final String pluginName : pluginRegistry.current().plugins().keySet()) {
+            if (!discoveredPlugins.containsKey(pluginName)) changed |= unload(plugins, pluginName);
+        }
+
+        // Load new plugins and reload updated ones
+        for (final PluginInfo newInfo : discoveredPlugins.values()) {
+            changed |= apply(plugins, newInfo);
+        }
+        if (changed) publish(plugins);
+    }
+
+    @Override
+    public synchronized void onFilesChanged(final Set<File> files) {
+        final Map<String, PluginInfo> plugins = new HashMap<>(pluginRegistry.current().plugins());
+        boolean changed = false;
+        for (final File file : files) {
+            final PluginInfo newInfo = file.isFile() ? discoverer.lookupOrInspect(file) : null;
+
+            // Whatever this file provided before is gone if it was deleted, broken or renamed its plugin. The working
+            // copy is matched, so a JAR that was moved and already applied from its new path isn't unloaded again.
+            for (final PluginInfo existingInfo : new ArrayList<>(plugins.values())) {
+                if (existingInfo.file().equals(file) && (newInfo == null || !existingInfo.name().equalsIgnoreCase(newInfo.name()))) {
+                    changed |= unload(plugins, existingInfo.name().toLowerCase());
+                }
+            }
+            if (newInfo != null) changed |= apply(plugins, newInfo);
+        }
+        if (changed) publish(plugins);
+    }
+
+    @Override
+    public void onOverflow() {
+        LoaderBackend.getLogger().warning("Plugin watcher missed events, rescanning the plugin directory...");
+        reconcile();
+    }
+
+    @Override
+    public void onDirectoriesChanged() {
+        LoaderBackend.getLogger().info("Group directories changed, rescanning the plugin directory...");
+        reconcile();
+    }
+
+    private void publish(final Map<String, PluginInfo> plugins) {
+        final PluginRegistry.Snapshot previous = pluginRegistry.current();
+        final PluginRegistry.Snapshot snapshot = pluginRegistry.publish(plugins);
+        if (snapshot.generation() != previous.generation()) {
+            LoaderBackend.getLogger().info("Published registry generation " + snapshot.generation() + " with " + snapshot.size() + " plugins.");
+        }
+
+        // The replaced builds are only retired once clients are pointed at the new ones.
+        for (final PluginInfo pluginInfo : plugins.values()) {
+            final PluginInfo previousInfo = previous.plugins().get(pluginInfo.name().toLowerCase());
+            if (previousInfo != null && !previousInfo.hash().equals(pluginInfo.hash())) artifactStore.retire(pluginInfo);
+        }
+    }
+
+    /**
+     * @return Whether the plugins changed.
+     */
+    private boolean unload(final Map<String, PluginInfo> plugins, final String pluginName) {
+        if (plugins.remove(pluginName) == null) return false;
+        artifactStore.invalidate(pluginName);
+        LoaderBackend.getLogger().info("Hot-unloaded plugin: " + pluginName);
+        return true;
+    }
+
+    /**
+     * @return Whether the plugins changed, including a build that only moved to another file.
+     */
+    private boolean apply(final Map<String, PluginInfo> plugins, final PluginInfo newInfo) {
+        final String name = newInfo.name().toLowerCase();
+        final PluginInfo existingInfo = plugins.get(name);
+
+        if (existingInfo == null) {
+            plugins.put(name, newInfo);
+            artifactStore.prepare(newInfo);
+            LoaderBackend.getLogger().info("Hot-loaded new plugin: " + newInfo.name());
+            return true;
+        } else if (!existingInfo.hash().equals(newInfo.hash())) {
+            plugins.put(name, newInfo);
+            artifactStore.prepare(newInfo);
+            LoaderBackend.getLogger().info("Hot-reloaded updated plugin: " + newInfo.name() + " (revision " + newInfo.revision() + ")");
+            return true;
+        } else if (!existingInfo.groups().equals(newInfo.groups())) {
+            // Same build, but servers of other groups gain or lose it, which takes a new generation.
+            plugins.put(name, newInfo);
+            LoaderBackend.getLogger().info("Moved plugin " + newInfo.name() + " to groups " + newInfo.groups());
+            return true;
+        } else if (!existingInfo.file().equals(newInfo.file())) {
+            // Same build under another file name, only the path needs to follow it, without a new generation.
+            plugins.put(name, newInfo);
+            return true;
+        }
+        return false;
+    }
+}
@@ -1,9 +1,23 @@
 package me.akraml.loader;
 
 import dev.al3mid3x.discovery.PluginDiscoverer;
-import dev.al3mid3x.discovery.PluginInfo;
+import dev.al3mid3x.discovery.PluginRegistry;
+import dev.al3mid3x.discovery.PluginWatcher;
+import dev.al3mid3x.security.EncryptionUtil;
+import dev.al3mid3x.security.ParallelChunkCipher;
 import lombok.Getter;
+import me.akraml.loader.server.ArtifactCache;
+import me.akraml.loader.server.ArtifactSpool;
+import me.akraml.loader.server.ArtifactStore;
+import me.akraml.loader.server.BandwidthShaper;
+import me.akraml.loader.server.CompressionDictionary;
 import me.akraml.loader.server.LoaderServer;
+import me.akraml.loader.server.NioLoaderServer;
+import me.akraml.loader.server.NotificationHub;
+import me.akraml.loader.server.ReplicaFollower;
+import me.akraml.loader.server.ServerEngine;
+import me.akraml.loader.server.TransferAdmission;
+import me.akraml.loader.server.VersionArchive;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.File;
@@ -12,13 +26,10 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * The main class of the loader's backend server.
@@ -58,52 +69,119 @@ public class LoaderBackend {
             return;
         }
 
-        final Map<String, PluginInfo> pluginRegistry = new ConcurrentHashMap<>();
-        final LoaderServer loaderServer = new LoaderServer(port, authToken, pluginRegistry);
+        final EncryptionUtil encryptionUtil = new EncryptionUtil(authToken);
+        final Integer cacheSizeMb = (Integer) config.getOrDefault("artifact-cache-size-mb", 256);
+        final Integer spoolThresholdKb = (Integer) config.getOrDefault("spool-threshold-kb", 1024);
+        final Integer encryptionThreads = (Integer) config.getOrDefault("encryption-threads", 0);
+        final ParallelChunkCipher chunkCipher = new ParallelChunkCipher(encryptionUtil, encryptionThreads);
+        final ArtifactCache artifactCache = new ArtifactCache(chunkCipher, cacheSizeMb * 1024L * 1024L);
+        final ArtifactSpool artifactSpool = spoolThresholdKb < 0 ? null : new ArtifactSpool("spool", chunkCipher);
+        // Previous builds are kept so clients updating a plugin can be sent a patch instead of the whole JAR
+        final Integer patchHistoryVersions = (Integer) config.getOrDefault("patch-history-versions", 3);
+        final VersionArchive versionArchive = patchHistoryVersions > 0 ? new VersionArchive("plugin-history", patchHistoryVersions) : null;
+        // Clients on metered links can ask for payloads re-encoded as one deflate stream with a shared dictionary
+        final Integer solidCompressionLevel = (Integer) config.getOrDefault("solid-compression-level", 6);
+        final CompressionDictionary compressionDictionary = solidCompressionLevel > 0 ? new CompressionDictionary() : null;
+        final ArtifactStore artifactStore = new ArtifactStore(artifactCache, artifactSpool, spoolThresholdKb * 1024L,
+                versionArchive, compressionDictionary, Math.min(9, solidCompressionLevel));
 
-        final PluginDiscoverer discoverer = new PluginDiscoverer("injected-plugins");
-        pluginRegistry.putAll(discoverer.discoverPlugins());
-        logger.info("Initial discovery found " + pluginRegistry.size() + " plugins.");
+        // Keeps a mass reconnect from saturating the network link or the backend itself
+        final Integer maxConcurrentTransfers = (Integer) config.getOrDefault("max-concurrent-transfers", 32);
+        final Integer maxQueuedTransfers = (Integer) config.getOrDefault("max-queued-transfers", 1024);
+        final Integer egressLimitKb = (Integer) config.getOrDefault("egress-limit-kb-per-second", 0);
+        final Integer clientEgressLimitKb = (Integer) config.getOrDefault("client-egress-limit-kb-per-second", 0);
+        final TransferAdmission transferAdmission = new TransferAdmission(maxConcurrentTransfers, maxQueuedTransfers);
+        final BandwidthShaper bandwidthShaper = new BandwidthShaper(egressLimitKb * 1024L, clientEgressLimitKb * 1024L);
+
+        final PluginRegistry pluginRegistry = new PluginRegistry();
+        final String engine = (String) config.getOrDefault("server-engine", "blocking");
+        final ServerEngine loaderServer;
+        if ("nio".equalsIgnoreCase(engine)) {
+            final Integer ioThreads = (Integer) config.getOrDefault("io-threads", 2);
+            loaderServer = new NioLoaderServer(port, authToken, pluginRegistry, artifactStore, transferAdmission, bandwidthShaper, ioThreads);
+        } else {
+            loaderServer = new LoaderServer(port, authToken, pluginRegistry, artifactStore, transferAdmission, bandwidthShaper);
+        }
+        logger.info("Using the " + engine + " server engine, " + bandwidthShaper.stats() + ".");
+
+        // A follower serves the plugins of its primary instead of watching its own directory
+        final String primaryAddress = (String) config.getOrDefault("primary-address", "");
+        final boolean follower = primaryAddress != null && !primaryAddress.isEmpty();
+        final ReplicaFollower replicaFollower;
+        final PluginDiscoverer discoverer;
+        if (follower) {
+            final Integer primaryPort = (Integer) config.getOrDefault("primary-port", 5003);
+            replicaFollower = new ReplicaFollower(primaryAddress, primaryPort, authToken, new File("replica-plugins"), pluginRegistry, artifactStore);
+            replicaFollower.restore();
+            discoverer = null;
+        } else {
+            final Integer discoveryThreads = (Integer) config.getOrDefault("discovery-threads", 4);
+            discoverer = new PluginDiscoverer("injected-plugins", new File("discovery-index.yml"), discoveryThreads);
+            pluginRegistry.publish(discoverer.discoverPlugins());
+            logger.info("Initial discovery found " + pluginRegistry.current().size() + " plugins.");
+            replicaFollower = null;
+        }
 
         final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(() -> {
-            logger.info("Performing hot-reload scan for plugins...");
-            final Map<String, PluginInfo> discoveredPlugins = discoverer.discoverPlugins();
-            final Set<String> discoveredPluginNames = discoveredPlugins.keySet().stream()
-                    .map(String::toLowerCase)
-                    .collect(Collectors.toSet());
-
-            // Unload plugins that are no longer present
-            pluginRegistry.keySet().removeIf(pluginName -> {
-                if (!discoveredPluginNames.contains(pluginName)) {
-                    logger.info("Hot-unloaded plugin: " + pluginName);
-                    return true;
-                }
-                return false;
-            });
-
-            // Load new plugins and reload updated ones
-            for (final Map.Entry<String, PluginInfo> entry : discoveredPlugins.entrySet()) {
-                final String name = entry.getKey().toLowerCase();
-                final PluginInfo newInfo = entry.getValue();
-                final PluginInfo existingInfo = pluginRegistry.get(name);
-
-                if (existingInfo == null) {
-                    pluginRegistry.put(name, newInfo);
-                    logger.info("Hot-loaded new plugin: " + newInfo.name());
-                } else if (existingInfo.file().lastModified() != newInfo.file().lastModified()) {
-                    pluginRegistry.put(name, newInfo);
-                    logger.info("Hot-reloaded updated plugin: " + newInfo.name());
-                }
-            }
-        }, 30, 30, TimeUnit.SECONDS);
+        // Build the artifacts in the background so the first clients don't pay for the encryption.
+        scheduler.execute(() -> {
+            pluginRegistry.current().values().forEach(artifactStore::prepare);
+            logger.info("Prepared initial artifacts, " + artifactStore.stats());
+        });
+        if (versionArchive != null) {
+            scheduler.execute(() -> versionArchive.archive(pluginRegistry.current().values()));
+            pluginRegistry.addListener(snapshot -> scheduler.execute(() -> versionArchive.archive(snapshot.values())));
+        }
+        if (compressionDictionary != null) {
+            scheduler.execute(() -> compressionDictionary.train(pluginRegistry.current().values()));
+            pluginRegistry.addListener(snapshot -> scheduler.execute(() -> compressionDictionary.train(snapshot.values())));
+        }
+        // Optional long-lived sessions telling clients about registry changes as soon as they happen
+        final Integer notificationPort = (Integer) config.getOrDefault("notification-port", -1);
+        final NotificationHub notificationHub;
+        if (notificationPort > 0) {
+            final Integer heartbeatSeconds = (Integer) config.getOrDefault("heartbeat-interval-seconds", 15);
+            notificationHub = new NotificationHub(notificationPort, authToken, heartbeatSeconds, pluginRegistry);
+            notificationHub.start();
+        } else {
+            notificationHub = null;
+        }
+
+        final PluginWatcher watcher;
+        if (follower) {
+            final Integer replicationSeconds = (Integer) config.getOrDefault("replication-interval-seconds", 2);
+            scheduler.scheduleWithFixedDelay(replicaFollower::replicate, 0, replicationSeconds, TimeUnit.SECONDS);
+            watcher = null;
+        } else {
+            final HotReloader hotReloader = new HotReloader(discoverer, pluginRegistry, artifactStore);
+            final Integer debounceMillis = (Integer) config.getOrDefault("watch-debounce-ms", 1000);
+            watcher = new PluginWatcher(discoverer.getPluginDirectory(), debounceMillis, hotReloader);
+            watcher.start();
+
+            // File events drive hot-reloading, the full scan only catches anything the watcher could have missed.
+            final Integer rescanSeconds = (Integer) config.getOrDefault("full-rescan-interval-seconds", 300);
+            scheduler.scheduleAtFixedRate(() -> {
+                logger.info("Performing full reconciliation scan for plugins...");
+                hotReloader.reconcile();
+            }, rescanSeconds, rescanSeconds, TimeUnit.SECONDS);
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (watcher != null) watcher.stop();
             scheduler.shutdownNow();
+            if (discoverer != null) discoverer.shutdown();
             loaderServer.shutdownServer();
+            if (notificationHub != null) notificationHub.shutdown();
+            chunkCipher.shutdown();
         }));
 
-        logger.info("Loader server successfully initialized in " + (System.currentTimeMillis() - start) + "ms.");
+        if (follower) {
+            logger.info("Loader server successfully initialized in " + (System.currentTimeMillis() - start) + "ms, following the primary at "
+                    + replicaFollower.primary() + ".");
+        } else {
+            logger.info("Loader server successfully initialized in " + (System.currentTimeMillis() - start) + "ms ("
+                    + discoverer.getLastIndexHits() + " plugins from the discovery index, " + discoverer.getLastInspections() + " rescanned).");
+        }
         logger.info("Press Ctrl+C to shut down the server.");
 
         loaderServer.startListener();
@@ -131,6 +209,64 @@ public class LoaderBackend {
             writer.println();
             writer.println("# The secret authentication token that clients (LoaderPlugin) must provide");
             writer.println("auth-token: 'change-this-secret-token'");
+            writer.println();
+            writer.println("# Memory budget, in megabytes, for encrypted plugin payloads kept ready to send");
+            writer.println("artifact-cache-size-mb: 256");
+            writer.println();
+            writer.println("# Plugins at least this large (in kilobytes) are encrypted once into the 'spool' directory and");
+            writer.println("# sent straight from disk with zero-copy transfers. Set to -1 to keep every payload in memory");
+            writer.println("spool-threshold-kb: 1024");
+            writer.println();
+            writer.println("# Number of previous builds of each plugin kept in 'plugin-history', so servers updating a plugin");
+            writer.println("# are only sent the entries that changed. Set to 0 to always send whole JARs");
+            writer.println("patch-history-versions: 3");
+            writer.println();
+            writer.println("# Deflate level (1-9) of the solid payloads offered to servers that enable solid compression: JARs re-encoded");
+            writer.println("# as one stream with a dictionary trained on the shared classes of every plugin. Set to 0 to disable them");
+            writer.println("solid-compression-level: 6");
+            writer.println();
+            writer.println("# Number of threads encrypting plugin payloads in parallel chunks, 0 uses every core");
+            writer.println("encryption-threads: 0");
+            writer.println();
+            writer.println("# Connection engine: 'blocking' (one thread per connection) or 'nio' (a few event-loop threads)");
+            writer.println("server-engine: blocking");
+            writer.println();
+            writer.println("# Number of event-loop threads of the 'nio' engine");
+            writer.println("io-threads: 2");
+            writer.println();
+            writer.println("# Maximum number of clients receiving plugin payloads at the same time, the others wait in a queue");
+            writer.println("max-concurrent-transfers: 32");
+            writer.println();
+            writer.println("# Maximum number of clients waiting for a transfer, further ones are told to come back later");
+            writer.println("max-queued-transfers: 1024");
+            writer.println();
+            writer.println("# Egress limits, in kilobytes per second, of the whole backend and of each client address. 0 disables them");
+            writer.println("egress-limit-kb-per-second: 0");
+            writer.println("client-egress-limit-kb-per-second: 0");
+            writer.println();
+            writer.println("# Maximum number of plugin JARs inspected in parallel during discovery");
+            writer.println("discovery-threads: 4");
+            writer.println();
+            writer.println("# How long, in milliseconds, a plugin JAR must stay untouched before a change to it is picked up");
+            writer.println("watch-debounce-ms: 1000");
+            writer.println();
+            writer.println("# Interval, in seconds, of the full rescan catching anything the file watcher missed");
+            writer.println("full-rescan-interval-seconds: 300");
+            writer.println();
+            writer.println("# Port of the optional notification hub, which pushes registry changes to connected clients");
+            writer.println("# so they sync on their own. Set to -1 to disable it");
+            writer.println("notification-port: -1");
+            writer.println();
+            writer.println("# Interval, in seconds, of the heartbeats keeping notification sessions alive");
+            writer.println("heartbeat-interval-seconds: 15");
+            writer.println();
+            writer.println("# Address and port of the primary backend this one follows. A follower replicates the plugins of its primary");
+            writer.println("# into 'replica-plugins' instead of watching 'injected-plugins'. Leave the address empty on the primary");
+            writer.println("primary-address: ''");
+            writer.println("primary-port: 5003");
+            writer.println();
+            writer.println("# Interval, in seconds, at which a follower checks its primary for a new generation");
+            writer.println("replication-interval-seconds: 2");
         }
 
         logger.info("======================================================================");
@@ -0,0 +1,276 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.security.ChunkedCipherOutputStream;
+import me.akraml.loader.LoaderBackend;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * The encrypted, ready-to-send form of a plugin build. It either lives in memory, or in a spool file
+ * which is sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)} so it never passes
+ * through the Java heap.
+ * <p>
+ * An artifact is sent as {@link SyncProtocol#DATA} frames lined up with its sealed chunks: frame 0 is the
+ * payload header, and frame {@code i + 1} is chunk {@code i}. A transfer can resume at any chunk by sending the
+ * header and the chunks from there on. The frame checksums are computed once, when the artifact is built.
+ * <p>
+ * The payload is the plugin JAR itself, a {@link JarPatch} turning an older build the client has into it, or the
+ * JAR re-encoded by {@link SolidCodec}.
+ * <p>
+ * A spooled artifact keeps its spool file open from the moment it's built, and counts its holders: the
+ * {@link ArtifactSpool} while it serves the build, and every transfer between {@link #retain()} and
+ * {@link #release()}. The file is closed and deleted once the last of them lets go, so a build retired
+ * while a transfer is queued or in flight is still sent whole.
+ */
+public final class Artifact {
+
+    /**
+     * How the plugin JAR is encoded in the payload.
+     */
+    public enum Encoding {
+        FULL,
+        PATCH,
+        SOLID
+    }
+
+    private final String identity;
+    private final long length;
+    private final byte[] payload;
+    private final File spoolFile;
+    private final FileChannel fileChannel;
+    private final AtomicInteger holders = new AtomicInteger(1);
+    private final Encoding encoding;
+    private final String patchBase;
+    private final int[] frameChecksums;
+
+    private Artifact(String identity, long length, byte[] payload, File spoolFile, FileChannel fileChannel,
+                     Encoding encoding, String patchBase, ByteBuffer content) {
+        this.identity = identity;
+        this.length = length;
+        this.payload = payload;
+        this.spoolFile = spoolFile;
+        this.fileChannel = fileChannel;
+        this.encoding = encoding;
+        this.patchBase = patchBase;
+        this.frameChecksums = new int[frameCountOf(length)];
+        final CRC32 crc = new CRC32();
+        for (int frame = 0; frame < frameChecksums.length; frame++) {
+            final ByteBuffer slice = content.duplicate();
+            slice.position((int) frameOffset(frame));
+            slice.limit((int) frameOffset(frame) + frameLength(frame));
+            crc.reset();
+            crc.update(slice);
+            frameChecksums[frame] = (int) crc.getValue();
+        }
+    }
+
+    public static Artifact inMemory(String identity, byte[] payload) {
+        return new Artifact(identity, payload.length, payload, null, null, Encoding.FULL, null, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * @param patchBase The hash of the build the encrypted patch applies to.
+     */
+    public static Artifact patch(String identity, String patchBase, byte[] payload) {
+        return new Artifact(identity, payload.length, payload, null, null, Encoding.PATCH, patchBase, ByteBuffer.wrap(payload));
+    }
+
+    public static Artifact solid(String identity, byte[] payload) {
+        return new Artifact(identity, payload.length, payload, null, null, Encoding.SOLID, null, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * @return The artifact, held by the caller until it calls {@link #release()}.
+     */
+    public static Artifact spooled(String identity, File spoolFile) throws IOException {
+        final FileChannel fileChannel = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ);
+        try {
+            final ByteBuffer content = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            return new Artifact(identity, fileChannel.size(), null, spoolFile, fileChannel, Encoding.FULL, null, content);
+        } catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Holds a spooled artifact for a transfer, so its spool file stays open until {@link #release()}.
+     * In-memory artifacts can always be held.
+     *
+     * @return Whether the artifact is held, {@code false} if its spool file was closed already.
+     */
+    public boolean retain() {
+        if (!isSpooled()) return true;
+        for (int count = holders.get(); count > 0; count = holders.get()) {
+            if (holders.compareAndSet(count, count + 1)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lets go of the artifact, closing and deleting its spool file if this was the last holder.
+     */
+    public void release() {
+        if (!isSpooled() || holders.decrementAndGet() != 0) return;
+        try {
+            fileChannel.close();
+            Files.deleteIfExists(spoolFile.toPath());
+        } catch (IOException e) {
+            LoaderBackend.getLogger().warning("Failed to delete spool file " + spoolFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    public String identity() {
+        return identity;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isSpooled() {
+        return spoolFile != null;
+    }
+
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    /**
+     * @return The hash of the build this patch applies to, or {@code null} if the artifact isn't a patch.
+     */
+    public String patchBase() {
+        return patchBase;
+    }
+
+    /**
+     * @return The encrypted bytes of an in-memory artifact, or {@code null} if it's spooled.
+     */
+    public byte[] payload() {
+        return payload;
+    }
+
+    /**
+     * @return The spool file of a spooled artifact, or {@code null} if it's in memory.
+     */
+    public File spoolFile() {
+        return spoolFile;
+    }
+
+    /**
+     * @return The open spool file of a spooled artifact, shared by every transfer and only read at explicit
+     * positions, or {@code null} if it's in memory.
+     */
+    public FileChannel fileChannel() {
+        return fileChannel;
+    }
+
+    public int frameCount() {
+        return frameChecksums.length;
+    }
+
+    public int chunkCount() {
+        return frameChecksums.length - 1;
+    }
+
+    /**
+     * @return The payload bytes sent by a transfer starting at the provided chunk, header included.
+     */
+    public long lengthFrom(final int firstChunk) {
+        return ChunkedCipherOutputStream.HEADER_LENGTH + length - frameOffset(firstChunk + 1);
+    }
+
+    /**
+     * @return The frame after the provided one in a transfer starting at the provided chunk.
+     */
+    public static int nextFrame(final int frame, final int firstChunk) {
+        return frame == 0 ? firstChunk + 1 : frame + 1;
+    }
+
+    public long frameOffset(final int frame) {
+        return frame == 0 ? 0 : ChunkedCipherOutputStream.HEADER_LENGTH + (long) (frame - 1) * ChunkedCipherOutputStream.SEALED_CHUNK_STRIDE;
+    }
+
+    public int frameLength(final int frame) {
+        final long end = frame == 0
+                ? ChunkedCipherOutputStream.HEADER_LENGTH
+                : Math.min(length, frameOffset(frame) + ChunkedCipherOutputStream.SEALED_CHUNK_STRIDE);
+        return (int) (end - frameOffset(frame));
+    }
+
+    public int frameChecksum(final int frame) {
+        return frameChecksums[frame];
+    }
+
+    /**
+     * Writes the header frame and the chunk frames from the provided chunk on to a blocking connection, at the
+     * pace its lane allows. Spooled artifacts are handed to the kernel through the connection's channel when there is one.
+     * The caller holds the artifact, see {@link #retain()}.
+     *
+     * @param out        The connection's stream, flushed before any bytes bypass it.
+     * @param channel    The connection's channel, or {@code null} if it has none.
+     * @param lane       The connection's lane of the bandwidth shaper.
+     * @param firstChunk The first chunk to write.
+     * @throws IOException          If any I/O issue occurs while sending.
+     * @throws InterruptedException If the thread is interrupted while waiting for the shaper.
+     */
+    public void writeFrames(final DataOutputStream out, final WritableByteChannel channel,
+                            final BandwidthShaper.Lane lane, final int firstChunk) throws IOException, InterruptedException {
+        for (int frame = 0; frame < frameCount(); frame = nextFrame(frame, firstChunk)) {
+            out.writeByte(SyncProtocol.DATA);
+            out.writeInt(frameLength(frame));
+            writeFrameBody(out, channel, lane, frame);
+            out.writeInt(frameChecksum(frame));
+        }
+    }
+
+    private void writeFrameBody(final DataOutputStream out, final WritableByteChannel channel,
+                                final BandwidthShaper.Lane lane, final int frame) throws IOException, InterruptedException {
+        final long end = frameOffset(frame) + frameLength(frame);
+        if (!isSpooled()) {
+            for (int position = (int) frameOffset(frame); position < end; ) {
+                final int allowed = (int) lane.acquire(end - position);
+                out.write(payload, position, allowed);
+                lane.consumed(allowed);
+                position += allowed;
+            }
+            return;
+        }
+
+        if (channel == null) {
+            // Positional reads, the spool file's channel is shared by every transfer and stays open.
+            final ByteBuffer buffer = ByteBuffer.allocate(frameLength(frame));
+            for (long position = frameOffset(frame); position < end; ) {
+                buffer.limit(buffer.position() + (int) lane.acquire(end - position));
+                final int read = fileChannel.read(buffer, position);
+                if (read == -1) throw new IOException("Spool file " + spoolFile.getName() + " is truncated");
+                out.write(buffer.array(), buffer.position() - read, read);
+                lane.consumed(read);
+                position += read;
+            }
+            return;
+        }
+
+        out.flush();
+        for (long position = frameOffset(frame); position < end; ) {
+            final long transferred = fileChannel.transferTo(position, lane.acquire(end - position), channel);
+            lane.consumed(transferred);
+            position += transferred;
+        }
+    }
+
+    private static int frameCountOf(final long length) {
+        final long chunks = (length - ChunkedCipherOutputStream.HEADER_LENGTH + ChunkedCipherOutputStream.SEALED_CHUNK_STRIDE - 1)
+                / ChunkedCipherOutputStream.SEALED_CHUNK_STRIDE;
+        return (int) (1 + chunks);
+    }
+}
@@ -0,0 +1,177 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginInfo;
+import dev.al3mid3x.security.ParallelChunkCipher;
+import me.akraml.loader.LoaderBackend;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the encrypted payload of each plugin in memory so that it's read from disk and encrypted
+ * once per build instead of once per client.
+ * <p>
+ * Entries are keyed by {@link PluginInfo#identity()}, so a new build of a plugin never gets served a stale
+ * payload, and an older build that finishes encrypting late can't replace a newer one. The cache is bounded
+ * by a byte budget and evicts the least recently used payloads first, superseded builds included.
+ * <p>
+ * Patches and {@link SolidCodec} payloads are cached next to the full payloads, keyed by build and base build
+ * or dictionary.
+ */
+public final class ArtifactCache {
+
+    private final ParallelChunkCipher chunkCipher;
+    private final long maxBytes;
+    private final Map<String, Artifact> artifacts = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong solidEncodings = new AtomicLong();
+    private final AtomicLong solidJarBytes = new AtomicLong();
+    private final AtomicLong solidPayloadBytes = new AtomicLong();
+    private final AtomicLong solidCpuNanos = new AtomicLong();
+
+    public ArtifactCache(final ParallelChunkCipher chunkCipher, final long maxBytes) {
+        this.chunkCipher = chunkCipher;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the in-memory artifact of the provided plugin build, encrypting and caching it on a miss.
+     *
+     * @param pluginInfo The plugin build to get the artifact of.
+     * @return The in-memory artifact.
+     * @throws Exception If the JAR can't be read or encrypted.
+     */
+    public Artifact get(final PluginInfo pluginInfo) throws Exception {
+        final Artifact cached = cached(pluginInfo.identity());
+        if (cached != null) return cached;
+
+        // Encrypt outside the lock so a miss doesn't stall clients being served from the cache.
+        final byte[] payload;
+        try (final FileChannel fileChannel = FileChannel.open(pluginInfo.file().toPath(), StandardOpenOption.READ)) {
+            payload = chunkCipher.encrypt(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size()));
+        }
+        final Artifact artifact = Artifact.inMemory(pluginInfo.identity(), payload);
+        put(artifact);
+        return artifact;
+    }
+
+    /**
+     * Returns the in-memory patch from the provided base build to the provided plugin build, building, encrypting
+     * and caching it on a miss.
+     *
+     * @param pluginInfo The plugin build to patch to.
+     * @param baseHash   The hash of the build to patch from.
+     * @param baseFile   The archived base build.
+     * @param targetFile The archived copy of the plugin build, which can't change while it's compared.
+     * @param maxLength  Longest patch worth sending instead of the whole JAR.
+     * @return The patch artifact, or {@code null} if it would be longer than {@code maxLength}.
+     * @throws Exception If either JAR can't be read, or the patch can't be encrypted.
+     */
+    public Artifact getPatch(final PluginInfo pluginInfo, final String baseHash, final File baseFile,
+                             final File targetFile, final long maxLength) throws Exception {
+        final String identity = pluginInfo.identity() + '<' + baseHash;
+        final Artifact cached = cached(identity);
+        if (cached != null) return cached;
+
+        final byte[] patch = JarPatch.diff(baseFile, targetFile);
+        if (patch.length > maxLength) return null;
+        final Artifact artifact = Artifact.patch(identity, baseHash, chunkCipher.encrypt(ByteBuffer.wrap(patch)));
+        put(artifact);
+        return artifact;
+    }
+
+    /**
+     * Returns the in-memory {@link SolidCodec} payload of the provided plugin build for the provided dictionary,
+     * re-encoding, encrypting and caching it on a miss.
+     *
+     * @param level     The deflate level of the solid stream.
+     * @param maxLength Longest payload worth sending instead of the whole JAR.
+     * @return The solid artifact, or {@code null} if it would be longer than {@code maxLength}.
+     * @throws Exception If the JAR can't be read, or the payload can't be encrypted.
+     */
+    public Artifact getSolid(final PluginInfo pluginInfo, final CompressionDictionary.Dictionary dictionary,
+                             final int level, final long maxLength) throws Exception {
+        final String identity = pluginInfo.identity() + '#' + dictionary.id;
+        final Artifact cached = cached(identity);
+        if (cached != null) return cached;
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long cpuStart = threads.getCurrentThreadCpuTime();
+        final byte[] encoded = SolidCodec.encode(pluginInfo.file(), dictionary.bytes, level);
+        final long cpuNanos = Math.max(0, threads.getCurrentThreadCpuTime() - cpuStart);
+        solidEncodings.incrementAndGet();
+        solidJarBytes.addAndGet(pluginInfo.size());
+        solidPayloadBytes.addAndGet(encoded.length);
+        solidCpuNanos.addAndGet(cpuNanos);
+        LoaderBackend.getLogger().info(String.format("Solid-encoded %s: %d to %d bytes (%.1f%%) in %.1fms of CPU.", pluginInfo.name(),
+                pluginInfo.size(), encoded.length, 100.0 * encoded.length / Math.max(1, pluginInfo.size()), cpuNanos / 1_000_000.0));
+        if (encoded.length > maxLength) return null;
+
+        final Artifact artifact = Artifact.solid(identity, chunkCipher.encrypt(ByteBuffer.wrap(encoded)));
+        put(artifact);
+        return artifact;
+    }
+
+    private synchronized Artifact cached(final String identity) {
+        final Artifact artifact = artifacts.get(identity);
+        if (artifact != null) {
+            hits.incrementAndGet();
+            return artifact;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Drops the cached payloads of the provided plugin, patches and solid ones included, called when it's hot-unloaded.
+     */
+    public synchronized void invalidate(final String pluginName) {
+        // Every build of the plugin, as identities are the lowercase name followed by '@' and the hash.
+        final String prefix = pluginName.toLowerCase() + '@';
+        final Iterator<Artifact> iterator = artifacts.values().iterator();
+        while (iterator.hasNext()) {
+            final Artifact artifact = iterator.next();
+            if (artifact.identity().startsWith(prefix)) {
+                iterator.remove();
+                usedBytes -= artifact.length();
+            }
+        }
+    }
+
+    private synchronized void put(final Artifact artifact) {
+        // Payloads bigger than the whole budget are served but never cached.
+        if (artifact.length() > maxBytes) return;
+
+        final Artifact previous = artifacts.put(artifact.identity(), artifact);
+        if (previous != null) usedBytes -= previous.length();
+        usedBytes += artifact.length();
+
+        final Iterator<Artifact> iterator = artifacts.values().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext()) {
+            final Artifact eldest = iterator.next();
+            if (eldest == artifact) continue;
+            iterator.remove();
+            usedBytes -= eldest.length();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized String stats() {
+        return "artifact cache: " + artifacts.size() + " entries, " + usedBytes + "/" + maxBytes + " bytes, "
+                + hits.get() + " hits, " + misses.get() + " misses, " + evictions.get() + " evictions"
+                + (solidEncodings.get() == 0 ? "" : String.format(", %d solid encodings (%.1f%% of %d bytes, %.1fms of CPU)", solidEncodings.get(),
+                100.0 * solidPayloadBytes.get() / Math.max(1, solidJarBytes.get()), solidJarBytes.get(), solidCpuNanos.get() / 1_000_000.0));
+    }
+}
@@ -0,0 +1,118 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginInfo;
+import dev.al3mid3x.security.ParallelChunkCipher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes the encrypted form of each plugin build once into a spool directory, so it can be sent
+ * straight from disk. The spool is wiped on startup since its content depends on the auth token.
+ * <p>
+ * Entries are keyed by {@link PluginInfo#identity()}, so builds of the same plugin never replace each
+ * other. A build stays spooled until it's retired, and its file is only deleted once the transfers
+ * holding it are done, see {@link Artifact#retain()}.
+ */
+public final class ArtifactSpool {
+
+    private final File spoolDirectory;
+    private final ParallelChunkCipher chunkCipher;
+    private final Map<String, Artifact> artifacts = new ConcurrentHashMap<>();
+
+    public ArtifactSpool(final String directoryPath, final ParallelChunkCipher chunkCipher) throws IOException {
+        this.spoolDirectory = new File(directoryPath);
+        this.chunkCipher = chunkCipher;
+
+        if (!spoolDirectory.exists() && !spoolDirectory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + spoolDirectory.getAbsolutePath());
+        }
+        final File[] leftovers = spoolDirectory.listFiles((dir, name) -> name.endsWith(".bin") || name.endsWith(".tmp"));
+        if (leftovers != null) {
+            for (final File leftover : leftovers) {
+                Files.deleteIfExists(leftover.toPath());
+            }
+        }
+    }
+
+    /**
+     * Returns the spooled artifact of the provided plugin build, encrypting it into the spool on a miss.
+     *
+     * @param pluginInfo The plugin build to get the artifact of.
+     * @return The spooled artifact.
+     * @throws Exception If the JAR can't be read, encrypted or written to the spool.
+     */
+    public Artifact get(final PluginInfo pluginInfo) throws Exception {
+        final Artifact existing = artifacts.get(pluginInfo.identity());
+        if (existing != null) return existing;
+
+        // Encrypt into a temporary file first so a half-written spool file is never served. Its unique name carries
+        // over to the spool file, so a build spooled again never shares a file with its retired artifact.
+        final Path tempFile = Files.createTempFile(spoolDirectory.toPath(), baseNameOf(pluginInfo) + "-" + pluginInfo.hash() + "-", ".tmp");
+        final String tempName = tempFile.getFileName().toString();
+        final File spoolFile = new File(spoolDirectory, tempName.substring(0, tempName.length() - ".tmp".length()) + ".bin");
+        try (final FileChannel in = FileChannel.open(pluginInfo.file().toPath(), StandardOpenOption.READ);
+             final FileChannel out = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            chunkCipher.encrypt(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()), out);
+        } catch (Exception e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        Files.move(tempFile, spoolFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        final Artifact artifact = Artifact.spooled(pluginInfo.identity(), spoolFile);
+        final Artifact previous = artifacts.putIfAbsent(pluginInfo.identity(), artifact);
+        if (previous != null) {
+            // Spooled concurrently, which only happens when the store didn't coalesce the requests.
+            artifact.release();
+            return previous;
+        }
+        return artifact;
+    }
+
+    /**
+     * Retires every spooled build of the provided plugin but the provided one, called once a newer build is
+     * published. Older builds that are still being sent keep their files until their transfers are done.
+     *
+     * @param current The build to keep.
+     */
+    public void retire(final PluginInfo current) {
+        final String prefix = current.name().toLowerCase() + '@';
+        artifacts.entrySet().removeIf(entry -> {
+            if (!entry.getKey().startsWith(prefix) || entry.getKey().equals(current.identity())) return false;
+            entry.getValue().release();
+            return true;
+        });
+    }
+
+    /**
+     * Retires every spooled build of the provided plugin, called when it's hot-unloaded.
+     */
+    public void invalidate(final String pluginName) {
+        final String prefix = pluginName.toLowerCase() + '@';
+        artifacts.entrySet().removeIf(entry -> {
+            if (!entry.getKey().startsWith(prefix)) return false;
+            entry.getValue().release();
+            return true;
+        });
+    }
+
+    public String stats() {
+        long usedBytes = 0;
+        for (final Artifact artifact : artifacts.values()) {
+            usedBytes += artifact.length();
+        }
+        return "spool: " + artifacts.size() + " files, " + usedBytes + " bytes";
+    }
+
+    private static String baseNameOf(final PluginInfo pluginInfo) {
+        return pluginInfo.name().toLowerCase().replaceAll("[^a-z0-9._-]", "_");
+    }
+}
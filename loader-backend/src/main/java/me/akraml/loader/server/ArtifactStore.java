@@ -0,0 +1,175 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginInfo;
+import me.akraml.loader.LoaderBackend;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides where the encrypted artifact of each plugin build lives: small plugins are kept in the
+ * in-memory {@link ArtifactCache}, while plugins at or above the spool threshold are written once to the
+ * {@link ArtifactSpool} and sent from disk.
+ * <p>
+ * Concurrent requests for the same plugin build are coalesced: the first one builds the artifact, and the others
+ * wait for its result instead of reading and encrypting the same JAR again.
+ * <p>
+ * With a {@link VersionArchive}, clients that have an older build of a plugin can be sent a {@link JarPatch} from
+ * it instead, as long as both builds are still archived and the patch is small enough to be worth it. With a
+ * {@link CompressionDictionary}, clients that negotiated it can be sent the {@link SolidCodec} payload of a plugin.
+ */
+public final class ArtifactStore {
+
+    private final ArtifactCache cache;
+    private final ArtifactSpool spool;
+    private final long spoolThresholdBytes;
+    private final VersionArchive archive;
+    private final CompressionDictionary dictionary;
+    private final int solidLevel;
+    private final Map<String, CompletableFuture<Artifact>> inFlight = new ConcurrentHashMap<>();
+    /** Identities of the patches and solid payloads found too large to be worth sending. */
+    private final Set<String> unprofitable = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong patches = new AtomicLong();
+
+    /**
+     * @param cache               The in-memory cache.
+     * @param spool               The spool, or {@code null} to keep every artifact in memory.
+     * @param spoolThresholdBytes Minimum JAR size for a plugin to be spooled.
+     * @param archive             The archive of previous builds, or {@code null} to never send patches.
+     * @param dictionary          The dictionary of solid payloads, or {@code null} to never send them.
+     * @param solidLevel          The deflate level of solid payloads.
+     */
+    public ArtifactStore(final ArtifactCache cache, final ArtifactSpool spool, final long spoolThresholdBytes,
+                         final VersionArchive archive, final CompressionDictionary dictionary, final int solidLevel) {
+        this.cache = cache;
+        this.spool = spool;
+        this.spoolThresholdBytes = spoolThresholdBytes;
+        this.archive = archive;
+        this.dictionary = dictionary;
+        this.solidLevel = solidLevel;
+    }
+
+    public Artifact get(final PluginInfo pluginInfo) throws Exception {
+        return coalesce(pluginInfo.identity(), () -> spool != null && pluginInfo.size() >= spoolThresholdBytes
+                ? spool.get(pluginInfo)
+                : cache.get(pluginInfo));
+    }
+
+    /**
+     * Returns the patch from the provided base build to the provided plugin build. Patches are only sent when
+     * they're at most three quarters of the JAR, a patch found larger than that is remembered and not built again.
+     *
+     * @return The patch artifact, or {@code null} if the whole JAR should be sent instead.
+     */
+    public Artifact getPatch(final PluginInfo pluginInfo, final String baseHash) throws Exception {
+        if (archive == null || baseHash.isEmpty() || baseHash.equals(pluginInfo.hash())) return null;
+        final String identity = pluginInfo.identity() + '<' + baseHash;
+        if (unprofitable.contains(identity)) return null;
+
+        // Both builds come from the archive, verified against their hashes, so the patch rebuilds the exact build.
+        final File baseFile = archive.find(pluginInfo.name(), baseHash);
+        final File targetFile = archive.find(pluginInfo.name(), pluginInfo.hash());
+        if (baseFile == null || targetFile == null) return null;
+
+        final Artifact patch = coalesce(identity, () -> cache.getPatch(pluginInfo, baseHash, baseFile, targetFile, pluginInfo.size() * 3 / 4));
+        if (patch == null) {
+            unprofitable.add(identity);
+            return null;
+        }
+        patches.incrementAndGet();
+        return patch;
+    }
+
+    /**
+     * Returns the solid payload of the provided plugin build, encoded with the provided dictionary. Solid payloads
+     * are only sent when they save at least a twentieth of the JAR.
+     *
+     * @param dictionaryId The dictionary the client has.
+     * @return The solid artifact, or {@code null} if the whole JAR should be sent instead.
+     */
+    public Artifact getSolid(final PluginInfo pluginInfo, final String dictionaryId) throws Exception {
+        if (dictionary == null) return null;
+        // Payloads are only encoded with the current dictionary, a client holding an older one is sent the whole JAR.
+        final CompressionDictionary.Dictionary current = dictionary.current();
+        if (!current.id.equals(dictionaryId)) return null;
+        final String identity = pluginInfo.identity() + '#' + current.id;
+        if (unprofitable.contains(identity)) return null;
+
+        final Artifact solid = coalesce(identity, () -> cache.getSolid(pluginInfo, current, solidLevel, pluginInfo.size() * 19 / 20));
+        if (solid == null) unprofitable.add(identity);
+        return solid;
+    }
+
+    /**
+     * @return The dictionary of solid payloads, or {@code null} if they're disabled.
+     */
+    public CompressionDictionary dictionary() {
+        return dictionary;
+    }
+
+    private Artifact coalesce(final String identity, final Callable<Artifact> builder) throws Exception {
+        final CompletableFuture<Artifact> ours = new CompletableFuture<>();
+        final CompletableFuture<Artifact> running = inFlight.putIfAbsent(identity, ours);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            try {
+                return running.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        try {
+            final Artifact artifact = builder.call();
+            ours.complete(artifact);
+            return artifact;
+        } catch (Exception e) {
+            ours.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(identity, ours);
+        }
+    }
+
+    /**
+     * Builds the artifact of a newly discovered plugin build, so the first client doesn't pay for it.
+     */
+    public void prepare(final PluginInfo pluginInfo) {
+        try {
+            get(pluginInfo);
+        } catch (Exception e) {
+            LoaderBackend.getLogger().warning("Failed to prepare artifact for " + pluginInfo.name() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retires the spooled artifacts of the builds of the provided plugin other than the provided one, called once
+     * it's published. Transfers already holding one of them still finish.
+     */
+    public void retire(final PluginInfo current) {
+        if (spool != null) spool.retire(current);
+    }
+
+    /**
+     * Drops every artifact of the provided plugin, patches included, called when it's hot-unloaded.
+     */
+    public void invalidate(final String pluginName) {
+        cache.invalidate(pluginName);
+        if (spool != null) spool.invalidate(pluginName);
+        final String prefix = pluginName.toLowerCase() + '@';
+        unprofitable.removeIf(identity -> identity.startsWith(prefix));
+    }
+
+    public String stats() {
+        return (spool == null ? cache.stats() : cache.stats() + ", " + spool.stats()) + ", " + coalesced.get() + " coalesced, "
+                + patches.get() + " patches served";
+    }
+}
@@ -0,0 +1,181 @@
+package me.akraml.loader.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes the payload bytes sent by the backend with token buckets: one for the total egress, and one per client
+ * address shared by all of its connections. Each connection writes through a {@link Lane} and only sends what both
+ * of its buckets allow, so a mass reconnect can't saturate the network link the backend itself needs.
+ * <p>
+ * A bucket holds about a tenth of a second worth of bytes, so bursts stay short. A rate of 0 or less disables
+ * the respective bucket.
+ */
+public final class BandwidthShaper {
+
+    /** Writes smaller than this are delayed until the buckets refill, unless less is left to send. */
+    private static final long MIN_GRANT_BYTES = 16 * 1024;
+
+    private final TokenBucket total;
+    private final long clientBytesPerSecond;
+    private final Map<String, SharedBucket> clientBuckets = new HashMap<>();
+
+    /**
+     * @param totalBytesPerSecond  Egress limit of the whole backend.
+     * @param clientBytesPerSecond Egress limit of each client address.
+     */
+    public BandwidthShaper(final long totalBytesPerSecond, final long clientBytesPerSecond) {
+        this.total = totalBytesPerSecond > 0 ? new TokenBucket(totalBytesPerSecond) : null;
+        this.clientBytesPerSecond = clientBytesPerSecond;
+    }
+
+    /**
+     * Opens the lane of a connection, which has to be {@link Lane#close() closed} with it.
+     *
+     * @param clientAddress The client's address, without the port.
+     */
+    public Lane open(final String clientAddress) {
+        if (clientBytesPerSecond <= 0) return new Lane(null, null);
+        synchronized (clientBuckets) {
+            final SharedBucket shared = clientBuckets.computeIfAbsent(clientAddress, key -> new SharedBucket(new TokenBucket(clientBytesPerSecond)));
+            shared.users++;
+            return new Lane(clientAddress, shared);
+        }
+    }
+
+    public String stats() {
+        final int clients;
+        synchronized (clientBuckets) {
+            clients = clientBuckets.size();
+        }
+        return "egress limit: " + (total == null ? "none" : total.bytesPerSecond + " B/s") + " total, "
+                + (clientBytesPerSecond <= 0 ? "none" : clientBytesPerSecond + " B/s") + " per client (" + clients + " shaped)";
+    }
+
+    /**
+     * The shaped egress of a single connection.
+     */
+    public final class Lane implements AutoCloseable {
+
+        private final String clientAddress;
+        private final SharedBucket client;
+        private boolean closed;
+
+        private Lane(String clientAddress, SharedBucket client) {
+            this.clientAddress = clientAddress;
+            this.client = client;
+        }
+
+        /**
+         * @param wanted The number of bytes left to send.
+         * @return How many of them may be sent right now, 0 if the connection has to wait.
+         */
+        public long allowance(final long wanted) {
+            long allowed = wanted;
+            if (total != null) allowed = Math.min(allowed, total.available());
+            if (client != null) allowed = Math.min(allowed, client.bucket.available());
+            return allowed >= Math.min(wanted, MIN_GRANT_BYTES) ? allowed : 0;
+        }
+
+        /**
+         * Takes the bytes that were actually sent out of the buckets.
+         */
+        public void consumed(final long bytes) {
+            if (bytes <= 0) return;
+            if (total != null) total.take(bytes);
+            if (client != null) client.bucket.take(bytes);
+        }
+
+        /**
+         * @return How long until {@link #allowance(long)} is expected to grant a write of the provided size.
+         */
+        public long nanosUntilAllowed(final long wanted) {
+            final long needed = Math.min(wanted, MIN_GRANT_BYTES);
+            long nanos = 0;
+            if (total != null) nanos = Math.max(nanos, total.nanosUntil(needed));
+            if (client != null) nanos = Math.max(nanos, client.bucket.nanosUntil(needed));
+            return nanos;
+        }
+
+        /**
+         * Blocks until some of the provided bytes may be sent.
+         *
+         * @return How many of them may be sent, to be reported with {@link #consumed(long)}.
+         */
+        public long acquire(final long wanted) throws InterruptedException {
+            while (true) {
+                final long allowed = allowance(wanted);
+                if (allowed > 0) return allowed;
+                TimeUnit.NANOSECONDS.sleep(Math.max(TimeUnit.MILLISECONDS.toNanos(1), nanosUntilAllowed(wanted)));
+            }
+        }
+
+        @Override
+        public void close() {
+            if (client == null || closed) return;
+            closed = true;
+            synchronized (clientBuckets) {
+                if (--client.users == 0) clientBuckets.remove(clientAddress);
+            }
+        }
+    }
+
+    private static final class SharedBucket {
+        private final TokenBucket bucket;
+        private int users; // Guarded by clientBuckets
+
+        private SharedBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * A bucket refilled continuously at its rate. Connections check and take separately, so concurrent writers
+     * can overdraw it slightly; the debt is paid back by the next refills.
+     */
+    private static final class TokenBucket {
+
+        private final long bytesPerSecond;
+        private final long capacity;
+        private long tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        private TokenBucket(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.capacity = Math.max(4 * MIN_GRANT_BYTES, bytesPerSecond / 10);
+            this.tokens = capacity;
+        }
+
+        private synchronized long available() {
+            refill();
+            return Math.max(0, tokens);
+        }
+
+        private synchronized void take(long bytes) {
+            refill();
+            tokens -= bytes;
+        }
+
+        private synchronized long nanosUntil(long bytes) {
+            refill();
+            final long missing = bytes - tokens;
+            return missing <= 0 ? 0 : TimeUnit.SECONDS.toNanos(missing) / bytesPerSecond;
+        }
+
+        private void refill() {
+            final long now = System.nanoTime();
+            if (now - lastRefillNanos >= TimeUnit.SECONDS.toNanos(1)) {
+                // The bucket holds less than a second worth of bytes, so it's full anyway.
+                tokens = capacity;
+                lastRefillNanos = now;
+                return;
+            }
+            final long refilled = (now - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+            if (refilled <= 0) return;
+            tokens = Math.min(capacity, tokens + refilled);
+            // Only the time that produced whole tokens is used up, so slow rates still refill.
+            lastRefillNanos += refilled * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginInfo;
+import me.akraml.loader.LoaderBackend;
+import me.akraml.loader.utility.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The preset dictionary of {@link SolidCodec}, trained on the current plugins: the classes and resources shaded
+ * into several of them, so even the start of a payload can refer back to content the client already has.
+ * <p>
+ * Deflate only looks 32 KiB back, so that's all a dictionary can hold. The entries found in the most plugins are
+ * placed last, closest to the payload. A dictionary is identified by the hash of its content, and clients fetch
+ * it once per change.
+ */
+public final class CompressionDictionary {
+
+    static final int MAX_LENGTH = 32 * 1024;
+    /** Entries larger than this would take too much of the dictionary. */
+    private static final int MAX_ENTRY_SIZE = 8 * 1024;
+
+    private static final Dictionary EMPTY = new Dictionary("", new byte[0]);
+
+    private final AtomicReference<Dictionary> current = new AtomicReference<>(EMPTY);
+
+    /**
+     * The content of a trained dictionary.
+     */
+    public static final class Dictionary {
+        final String id;
+        final byte[] bytes;
+
+        private Dictionary(String id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    Dictionary current() {
+        return current.get();
+    }
+
+    /**
+     * Trains a new dictionary on the provided plugins, replacing the current one if it differs.
+     */
+    public void train(final Collection<PluginInfo> plugins) {
+        final long start = System.currentTimeMillis();
+        // Entries are told apart by name and CRC, as found in the central directories, so only the chosen ones are inflated.
+        final Map<String, SharedEntry> entries = new HashMap<>();
+        for (PluginInfo pluginInfo : plugins) {
+            try {
+                final ByteBuffer content = JarLayout.map(pluginInfo.file());
+                for (JarLayout.Entry entry : JarLayout.entriesOf(content)) {
+                    if (entry.size == 0 || entry.size > MAX_ENTRY_SIZE || entry.name.endsWith("/")) continue;
+                    if (entry.method != JarLayout.STORED && entry.method != JarLayout.DEFLATED) continue;
+                    entries.computeIfAbsent(entry.name + '|' + entry.crc, key -> new SharedEntry(entry.size)).add(pluginInfo, content, entry);
+                }
+            } catch (IOException e) {
+                LoaderBackend.getLogger().warning("Failed to read " + pluginInfo.name() + " for the compression dictionary: " + e.getMessage());
+            }
+        }
+
+        final List<SharedEntry> shared = new ArrayList<>();
+        for (SharedEntry entry : entries.values()) {
+            if (entry.plugins > 1) shared.add(entry);
+        }
+        shared.sort((a, b) -> a.plugins != b.plugins ? Integer.compare(b.plugins, a.plugins) : Integer.compare(a.size, b.size));
+
+        final List<byte[]> chosen = new ArrayList<>();
+        int length = 0;
+        for (SharedEntry entry : shared) {
+            if (length + entry.size > MAX_LENGTH) continue;
+            final byte[] content = entry.content();
+            if (content == null) continue; // Corrupted, the plugin itself is served as is
+            chosen.add(content);
+            length += entry.size;
+        }
+        Collections.reverse(chosen);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+        for (byte[] content : chosen) {
+            bytes.write(content, 0, content.length);
+        }
+        final byte[] trained = bytes.toByteArray();
+        final Dictionary dictionary = trained.length == 0 ? EMPTY : new Dictionary(FileUtils.sha256Hex(trained).substring(0, 16), trained);
+        if (dictionary.id.equals(current.get().id)) return;
+        current.set(dictionary);
+        LoaderBackend.getLogger().info("Trained a " + dictionary.bytes.length + " bytes compression dictionary from " + chosen.size()
+                + " entries shared by several plugins in " + (System.currentTimeMillis() - start) + "ms.");
+    }
+
+    private static final class SharedEntry {
+        private final int size;
+        private int plugins;
+        private String lastPlugin;
+        private ByteBuffer content;
+        private JarLayout.Entry entry;
+
+        private SharedEntry(int size) {
+            this.size = size;
+        }
+
+        private void add(final PluginInfo pluginInfo, final ByteBuffer content, final JarLayout.Entry entry) {
+            // Counted once per plugin, even if a JAR holds the same entry twice.
+            if (pluginInfo.name().equals(lastPlugin)) return;
+            lastPlugin = pluginInfo.name();
+            plugins++;
+            this.content = content;
+            this.entry = entry;
+        }
+
+        /**
+         * @return The content of the entry, or {@code null} if it can't be inflated.
+         */
+        private byte[] content() {
+            final ByteBuffer data = JarLayout.dataOf(content, entry);
+            final byte[] stored = new byte[data.remaining()];
+            data.get(stored);
+            return entry.method == JarLayout.STORED ? stored : SolidCodec.inflate(stored, entry.size);
+        }
+    }
+}
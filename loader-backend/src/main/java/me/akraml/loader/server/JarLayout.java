@@ -0,0 +1,126 @@
+package me.akraml.loader.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads where the entries of a plugin JAR are stored, from its central directory, so it can be re-encoded
+ * without unpacking it.
+ */
+final class JarLayout {
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+
+    private JarLayout() {
+    }
+
+    /**
+     * @return The content of the provided JAR, mapped in little-endian order like the ZIP records.
+     */
+    static ByteBuffer map(final File jar) throws IOException {
+        try (final FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("JAR is too large to re-encode");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * @return The entries of the provided archive, in the order their data appears in it.
+     * @throws IOException If it isn't a ZIP archive this class can read, such as a ZIP64 one.
+     */
+    static List<Entry> entriesOf(final ByteBuffer content) throws IOException {
+        final int endOfDirectory = findEndOfCentralDirectory(content);
+        final int entryCount = content.getShort(endOfDirectory + 10) & 0xFFFF;
+        final long directoryOffset = content.getInt(endOfDirectory + 16) & 0xFFFFFFFFL;
+        if (entryCount == 0xFFFF || directoryOffset == 0xFFFFFFFFL) throw new IOException("ZIP64 archives can't be re-encoded");
+
+        final List<Entry> entries = new ArrayList<>(entryCount);
+        int position = (int) directoryOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_LENGTH > content.capacity() || content.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Corrupted central directory");
+            }
+            final int method = content.getShort(position + 10) & 0xFFFF;
+            final int crc = content.getInt(position + 16);
+            final long compressedSize = content.getInt(position + 20) & 0xFFFFFFFFL;
+            final long size = content.getInt(position + 24) & 0xFFFFFFFFL;
+            final int nameLength = content.getShort(position + 28) & 0xFFFF;
+            final int extraLength = content.getShort(position + 30) & 0xFFFF;
+            final int commentLength = content.getShort(position + 32) & 0xFFFF;
+            final long headerOffset = content.getInt(position + 42) & 0xFFFFFFFFL;
+            final byte[] name = new byte[nameLength];
+            ((ByteBuffer) content.duplicate().position(position + CENTRAL_HEADER_LENGTH)).get(name);
+
+            if (headerOffset + LOCAL_HEADER_LENGTH > content.capacity() || content.getInt((int) headerOffset) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("Corrupted local header");
+            }
+            final long dataOffset = headerOffset + LOCAL_HEADER_LENGTH
+                    + (content.getShort((int) headerOffset + 26) & 0xFFFF)
+                    + (content.getShort((int) headerOffset + 28) & 0xFFFF);
+            if (dataOffset + compressedSize > content.capacity() || size > Integer.MAX_VALUE) throw new IOException("Corrupted entry data");
+
+            entries.add(new Entry(new String(name, StandardCharsets.UTF_8), method, crc, (int) dataOffset, (int) compressedSize, (int) size));
+            position += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+        }
+        entries.sort((a, b) -> Integer.compare(a.dataOffset, b.dataOffset));
+        return entries;
+    }
+
+    private static int findEndOfCentralDirectory(final ByteBuffer content) throws IOException {
+        // The record ends the archive, only followed by a comment of up to 64 KiB.
+        final int lowest = Math.max(0, content.capacity() - END_OF_CENTRAL_DIRECTORY_LENGTH - 0xFFFF);
+        for (int position = content.capacity() - END_OF_CENTRAL_DIRECTORY_LENGTH; position >= lowest; position--) {
+            if (content.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) return position;
+        }
+        throw new IOException("Not a ZIP archive");
+    }
+
+    /**
+     * @return The stored data of the provided entry, as it is in the archive.
+     */
+    static ByteBuffer dataOf(final ByteBuffer content, final Entry entry) {
+        final ByteBuffer data = content.duplicate();
+        data.position(entry.dataOffset).limit(entry.dataOffset + entry.compressedSize);
+        return data.slice();
+    }
+
+    static final class Entry {
+        final String name;
+        final int method;
+        final int crc;
+        final int dataOffset;
+        final int compressedSize;
+        final int size;
+
+        private Entry(String name, int method, int crc, int dataOffset, int compressedSize, int size) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.dataOffset = dataOffset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        /**
+         * @return Whether both entries are stored the same way and hold the same content, as far as the directory tells.
+         */
+        boolean sameData(final Entry other) {
+            return method == other.method && crc == other.crc && compressedSize == other.compressedSize && size == other.size;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package me.akraml.loader.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds patches turning one build of a plugin JAR into another, at the granularity of its ZIP entries: the
+ * stored data of every entry left untouched is copied from the client's build, while everything else (changed
+ * and added entries, the local headers and the central directory) is sent as is. Applying a patch rebuilds the
+ * new JAR byte for byte, so it's verified against the same hash as a full download.
+ * <p>
+ * A patch is the length of the new JAR, followed by operations up to {@link #END}:
+ * <ul>
+ *     <li>{@link #COPY}: a {@code long} offset in the base JAR and an {@code int} length to copy from there.</li>
+ *     <li>{@link #LITERAL}: an {@code int} length and as many bytes.</li>
+ * </ul>
+ */
+final class JarPatch {
+
+    static final byte END = 0;
+    static final byte COPY = 1;
+    static final byte LITERAL = 2;
+
+    private JarPatch() {
+    }
+
+    /**
+     * @return The patch turning the base JAR into the target JAR.
+     * @throws IOException If either file isn't a ZIP archive this class can read, such as a ZIP64 one.
+     */
+    static byte[] diff(final File base, final File target) throws IOException {
+        final ByteBuffer baseContent = JarLayout.map(base);
+        final ByteBuffer targetContent = JarLayout.map(target);
+
+        final Map<String, JarLayout.Entry> baseEntries = new HashMap<>();
+        for (JarLayout.Entry entry : JarLayout.entriesOf(baseContent)) {
+            baseEntries.put(entry.name, entry);
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream patch = new DataOutputStream(bytes);
+        patch.writeLong(targetContent.capacity());
+        int literalStart = 0;
+        for (JarLayout.Entry entry : JarLayout.entriesOf(targetContent)) {
+            final JarLayout.Entry baseEntry = baseEntries.get(entry.name);
+            if (entry.compressedSize == 0 || entry.dataOffset < literalStart) continue;
+            if (baseEntry == null || !entry.sameData(baseEntry)
+                    || !JarLayout.dataOf(targetContent, entry).equals(JarLayout.dataOf(baseContent, baseEntry))) continue;
+
+            writeLiteral(patch, targetContent, literalStart, entry.dataOffset);
+            patch.writeByte(COPY);
+            patch.writeLong(baseEntry.dataOffset);
+            patch.writeInt(entry.compressedSize);
+            literalStart = entry.dataOffset + entry.compressedSize;
+        }
+        writeLiteral(patch, targetContent, literalStart, targetContent.capacity());
+        patch.writeByte(END);
+        return bytes.toByteArray();
+    }
+
+    private static void writeLiteral(final DataOutputStream patch, final ByteBuffer content, final int start, final int end) throws IOException {
+        if (end <= start) return;
+        final byte[] literal = new byte[end - start];
+        ((ByteBuffer) content.duplicate().position(start)).get(literal);
+        patch.writeByte(LITERAL);
+        patch.writeInt(literal.length);
+        patch.write(literal);
+    }
+}
@@ -1,44 +1,69 @@
 package me.akraml.loader.server;
 
 import dev.al3mid3x.discovery.PluginInfo;
+import dev.al3mid3x.discovery.PluginRegistry;
 import dev.al3mid3x.security.EncryptionUtil;
 import me.akraml.loader.LoaderBackend;
-import me.akraml.loader.utility.FileUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.Map;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-public final class LoaderServer {
+/**
+ * The blocking {@link ServerEngine}, serving each connection on its own thread.
+ */
+public final class LoaderServer implements ServerEngine {
 
-    private final ServerSocket serverSocket;
+    private final ServerSocketChannel serverChannel;
     private final String authToken;
-    private final EncryptionUtil encryptionUtil;
-    private final Map<String, PluginInfo> pluginRegistry;
+    private final ManifestCache manifestCache;
+    private final PluginRegistry pluginRegistry;
+    private final ArtifactStore artifactStore;
+    private final TransferAdmission transferAdmission;
+    private final BandwidthShaper bandwidthShaper;
     private final ExecutorService connectionPool;
 
-    public LoaderServer(final int bindingPort, final String authToken, final Map<String, PluginInfo> pluginRegistry) throws IOException {
-        this.serverSocket = new ServerSocket(bindingPort);
+    public LoaderServer(final int bindingPort,
+                        final String authToken,
+                        final PluginRegistry pluginRegistry,
+                        final ArtifactStore artifactStore,
+                        final TransferAdmission transferAdmission,
+                        final BandwidthShaper bandwidthShaper) throws IOException {
+        // Accepting through a channel gives every connection a SocketChannel for zero-copy transfers.
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(bindingPort));
         this.authToken = authToken;
-        this.encryptionUtil = new EncryptionUtil(authToken);
         this.pluginRegistry = pluginRegistry;
+        this.manifestCache = new ManifestCache(pluginRegistry, new EncryptionUtil(authToken));
+        this.artifactStore = artifactStore;
+        this.transferAdmission = transferAdmission;
+        this.bandwidthShaper = bandwidthShaper;
         this.connectionPool = Executors.newCachedThreadPool();
     }
 
+    @Override
     public void startListener() {
-        while (!serverSocket.isClosed()) {
+        while (serverChannel.isOpen()) {
             try {
-                final Socket socket = serverSocket.accept();
+                final Socket socket = serverChannel.accept().socket();
                 connectionPool.submit(() -> handleConnection(socket));
+            } catch (ClosedChannelException e) {
+                return;
             } catch (SocketException e) {
-                if (serverSocket.isClosed()) return;
+                if (!serverChannel.isOpen()) return;
                 LoaderBackend.getLogger().warning("SocketException in listener: " + e.getMessage());
             } catch (IOException e) {
                 LoaderBackend.getLogger().severe("An I/O error occurred in the listener: " + e.getMessage());
@@ -50,30 +75,68 @@ public final class LoaderServer {
         final String hostname = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
         try (Socket s = socket;
              DataInputStream in = new DataInputStream(s.getInputStream());
-             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
 
             LoaderBackend.getLogger().info("Connection from /" + hostname + ". Authenticating...");
 
-            if (!authToken.equals(in.readUTF())) {
+            final SyncProtocol.Frame hello = SyncProtocol.readFrame(in);
+            if (hello.type != SyncProtocol.HELLO) throw new IOException("Expected a hello, got frame type " + hello.type);
+            final DataInputStream helloBody = hello.body();
+            final int version = helloBody.readInt();
+            if (version != SyncProtocol.VERSION) {
+                LoaderBackend.getLogger().warning("Client /" + hostname + " speaks protocol version " + version + ", expected " + SyncProtocol.VERSION + ".");
+                out.write(SyncProtocol.errorFrame("Unsupported protocol version " + version + ", the backend speaks " + SyncProtocol.VERSION));
+                return;
+            }
+            if (!authToken.equals(helloBody.readUTF())) {
                 LoaderBackend.getLogger().warning("Authentication failed for /" + hostname + ". Invalid token.");
+                out.write(SyncProtocol.errorFrame("Invalid auth token"));
                 return;
             }
+            if (!SyncProtocol.isReady(pluginRegistry)) {
+                LoaderBackend.getLogger().info("Turned /" + hostname + " away, there are no plugins to serve yet.");
+                out.write(SyncProtocol.notReadyFrame());
+                return;
+            }
+            final byte compression = SyncProtocol.negotiateCompression(helloBody.readByte(), artifactStore);
+            final Set<String> groups = SyncProtocol.readGroups(helloBody);
+            out.write(SyncProtocol.helloFrame(compression, artifactStore));
+            out.flush();
             LoaderBackend.getLogger().info("Client /" + hostname + " authenticated successfully.");
 
-            out.writeInt(pluginRegistry.size());
-
-            for (PluginInfo pluginInfo : pluginRegistry.values()) {
-                out.writeUTF(pluginInfo.name());
-                out.writeUTF(encryptionUtil.encrypt(pluginInfo.mainClass()));
+            while (true) {
+                final SyncProtocol.Frame request;
+                try {
+                    request = SyncProtocol.readFrame(in);
+                } catch (EOFException e) {
+                    return; // The client is done
+                }
 
-                // Read file to memory, encrypt, then send length-prefixed data
-                byte[] fileBytes = FileUtils.toByteArray(pluginInfo.file());
-                byte[] encryptedBytes = encryptionUtil.encrypt(fileBytes);
-
-                out.writeInt(encryptedBytes.length);
-                out.write(encryptedBytes);
+                switch (request.type) {
+                    case SyncProtocol.MANIFEST:
+                        final DataInputStream manifestBody = request.body();
+                        final long clientEpoch = manifestBody.readLong();
+                        final long clientGeneration = manifestBody.readLong();
+                        // A delta if the client has a recent generation, shared by every client of the same groups.
+                        out.write(manifestCache.frameFor(groups, clientEpoch, clientGeneration));
+                        break;
+                    case SyncProtocol.FETCH:
+                        if (!serveFetch(s, out, SyncProtocol.readFetch(request.body()), compression, groups, hostname)) return;
+                        break;
+                    case SyncProtocol.DICTIONARY:
+                        out.write(SyncProtocol.dictionaryFrame(artifactStore));
+                        break;
+                    case SyncProtocol.REPLICATE:
+                        out.write(manifestCache.replicaFrame());
+                        break;
+                    case SyncProtocol.PING:
+                        out.write(SyncProtocol.frame(SyncProtocol.PONG, request.body));
+                        break;
+                    default:
+                        throw new IOException("Unexpected frame type " + request.type);
+                }
+                out.flush();
             }
-            LoaderBackend.getLogger().info("Finished sending " + pluginRegistry.size() + " plugins to /" + hostname);
 
         } catch (Exception e) {
             LoaderBackend.getLogger().warning("Error during connection with /" + hostname + ": " + e.getMessage());
@@ -82,7 +145,102 @@ public final class LoaderServer {
         }
     }
 
+    /**
+     * Sends the requested plugins once a transfer slot is free, from the generation current at that point.
+     *
+     * @return {@code false} if the queue was full and the connection has to be closed.
+     */
+    private boolean serveFetch(final Socket s,
+                               final DataOutputStream out,
+                               final List<SyncProtocol.FetchRequest> requests,
+                               final byte compression,
+                               final Set<String> groups,
+                               final String hostname) throws Exception {
+        final String clientAddress = s.getInetAddress().getHostAddress();
+        final TransferAdmission.Ticket ticket = awaitTransferSlot(out, clientAddress, hostname);
+        if (ticket == null) return false;
+
+        final PluginRegistry.Snapshot snapshot = pluginRegistry.current().view(groups);
+        long sentBytes = 0;
+        int sent = 0;
+        int resumed = 0;
+        int patched = 0;
+        int solid = 0;
+        try (BandwidthShaper.Lane lane = bandwidthShaper.open(clientAddress)) {
+            for (SyncProtocol.FetchRequest request : requests) {
+                final PluginInfo pluginInfo = SyncProtocol.resolve(snapshot, request);
+                if (pluginInfo == null) {
+                    out.write(SyncProtocol.missingFrame(request.name));
+                    continue;
+                }
+
+                // Encrypted once per build (or patch) by the artifact store, then sent chunk by chunk
+                final Artifact artifact = SyncProtocol.artifactFor(artifactStore, pluginInfo, request, compression);
+                final int firstChunk = SyncProtocol.firstChunk(artifact, request);
+                try {
+                    out.write(SyncProtocol.payloadFrame(pluginInfo.name(), artifact, firstChunk));
+                    artifact.writeFrames(out, s.getChannel(), lane, firstChunk);
+                } finally {
+                    artifact.release();
+                }
+                sentBytes += artifact.lengthFrom(firstChunk);
+                sent++;
+                if (firstChunk > 0) resumed++;
+                if (artifact.encoding() == Artifact.Encoding.PATCH) patched++;
+                if (artifact.encoding() == Artifact.Encoding.SOLID) solid++;
+            }
+            out.flush();
+        } finally {
+            ticket.close();
+        }
+        LoaderBackend.getLogger().info("Finished syncing /" + hostname + " to generation " + snapshot.generation() + ": sent " + sent + " of "
+                + requests.size() + " requested plugins (" + sentBytes + " bytes, " + resumed + " resumed, " + patched + " patched, " + solid + " solid). " + artifactStore.stats() + ", " + manifestCache.stats());
+        return true;
+    }
+
+    /**
+     * Waits for a transfer slot, telling the client its position in the queue meanwhile.
+     *
+     * @return The admitted ticket, or {@code null} if the queue was full and the client was told to come back later.
+     */
+    private TransferAdmission.Ticket awaitTransferSlot(final DataOutputStream out,
+                                                       final String clientAddress,
+                                                       final String hostname) throws Exception {
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final TransferAdmission.Ticket ticket = transferAdmission.request(clientAddress, admitted::countDown);
+        if (ticket.isRejected()) {
+            final long retryAfterMillis = transferAdmission.retryAfterMillis();
+            out.write(SyncProtocol.busyFrame(retryAfterMillis));
+            out.flush();
+            LoaderBackend.getLogger().warning("Transfer queue is full, told /" + hostname + " to retry in " + retryAfterMillis + "ms. " + transferAdmission.stats());
+            return null;
+        }
+
+        try {
+            long waitMillis = 0;
+            while (!admitted.await(waitMillis, TimeUnit.MILLISECONDS)) {
+                final int position = ticket.position();
+                if (position > 0) {
+                    out.write(SyncProtocol.queuedFrame(position, ticket.estimatedWaitMillis()));
+                    out.flush();
+                    if (waitMillis == 0) LoaderBackend.getLogger().info("Client /" + hostname + " queued for transfer, position " + position + ".");
+                }
+                waitMillis = SyncProtocol.QUEUE_UPDATE_MILLIS;
+            }
+        } catch (Exception e) {
+            ticket.close();
+            throw e;
+        }
+        return ticket;
+    }
+
+    @Override
     public void shutdownServer() {
-        // ... (shutdown logic is fine)
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LoaderBackend.getLogger().warning("Failed to close the server channel: " + e.getMessage());
+        }
+        connectionPool.shutdownNow();
     }
 }
@@ -0,0 +1,108 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginRegistry;
+import dev.al3mid3x.security.EncryptionUtil;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link SyncProtocol#MANIFEST} frames of the current registry generation, built once per group view and per
+ * generation the clients synced last, then sent as they are to every client asking for the same one. A fleet
+ * syncing after a change mostly shares a handful of them, so the main classes are only encrypted once. The
+ * {@link SyncProtocol#REPLICATE} frame of the current generation is kept the same way for followers.
+ */
+final class ManifestCache {
+
+    /** Frames kept for the current generation, further ones are built on every request. */
+    private static final int MAX_FRAMES = 1024;
+
+    private final PluginRegistry pluginRegistry;
+    private final EncryptionUtil encryptionUtil;
+    private final Map<FrameKey, byte[]> frames = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile ReplicaFrame replicaFrame;
+
+    ManifestCache(final PluginRegistry pluginRegistry, final EncryptionUtil encryptionUtil) {
+        this.pluginRegistry = pluginRegistry;
+        this.encryptionUtil = encryptionUtil;
+    }
+
+    /**
+     * @param groups The groups of the client, see {@link SyncProtocol#readGroups}.
+     * @return The manifest of the current generation as seen by the client's groups, as the changes since the
+     * client's generation if the registry still has it.
+     */
+    byte[] frameFor(final Set<String> groups, final long clientEpoch, final long clientGeneration) throws Exception {
+        final PluginRegistry.Snapshot current = pluginRegistry.current();
+        final PluginRegistry.Snapshot base = SyncProtocol.baseOf(pluginRegistry, clientEpoch, clientGeneration);
+        final FrameKey key = new FrameKey(current.generation(), groups, base == null ? 0 : base.generation());
+        final byte[] cached = frames.get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        final byte[] frame = SyncProtocol.frame(SyncProtocol.MANIFEST, out -> SyncProtocol.writeManifest(out, pluginRegistry.epoch(),
+                current.view(groups), base == null ? null : base.view(groups), encryptionUtil));
+        // Frames of older generations are never asked for again.
+        frames.keySet().removeIf(frameKey -> frameKey.generation != current.generation());
+        if (frames.size() < MAX_FRAMES) frames.put(key, frame);
+        return frame;
+    }
+
+    /**
+     * @return The whole current generation, as sent to followers.
+     */
+    byte[] replicaFrame() throws Exception {
+        final PluginRegistry.Snapshot current = pluginRegistry.current();
+        final ReplicaFrame cached = replicaFrame;
+        if (cached != null && cached.generation == current.generation()) return cached.frame;
+
+        final byte[] frame = SyncProtocol.frame(SyncProtocol.REPLICATE, out -> SyncProtocol.writeReplica(out, pluginRegistry.epoch(), current, encryptionUtil));
+        replicaFrame = new ReplicaFrame(current.generation(), frame);
+        return frame;
+    }
+
+    String stats() {
+        return "manifest cache: " + frames.size() + " frames, " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+
+    private static final class FrameKey {
+        private final long generation;
+        private final Set<String> groups;
+        private final long baseGeneration;
+
+        private FrameKey(long generation, Set<String> groups, long baseGeneration) {
+            this.generation = generation;
+            this.groups = groups;
+            this.baseGeneration = baseGeneration;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FrameKey)) return false;
+            final FrameKey other = (FrameKey) o;
+            return generation == other.generation && baseGeneration == other.baseGeneration && groups.equals(other.groups);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Long.hashCode(generation) * 31 + groups.hashCode()) * 31 + Long.hashCode(baseGeneration);
+        }
+    }
+
+    private static final class ReplicaFrame {
+        private final long generation;
+        private final byte[] frame;
+
+        private ReplicaFrame(long generation, byte[] frame) {
+            this.generation = generation;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,648 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginInfo;
+import dev.al3mid3x.discovery.PluginRegistry;
+import dev.al3mid3x.security.EncryptionUtil;
+import me.akraml.loader.LoaderBackend;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The non-blocking {@link ServerEngine}. A fixed set of event-loop threads multiplex every connection with a
+ * {@link Selector}, and each connection walks through a small state machine: a hello, then one request at a time,
+ * with the requests that arrive meanwhile kept until the connection is ready again.
+ * <p>
+ * Payloads are only written while the socket is writable and the {@link BandwidthShaper} allows it, so a slow
+ * client never makes the backend buffer more than its pending frame headers. Connections receive payloads once the
+ * {@link TransferAdmission} gives them a slot, and are sent their queue position while they wait. Manifests and
+ * artifacts are prepared on a worker pool so the event loops never run encryption themselves.
+ */
+public final class NioLoaderServer implements ServerEngine {
+
+    /** Room for the longest request, and a few more queued behind the one being served. */
+    private static final int MAX_BUFFERED_BYTES = 2 * (SyncProtocol.MAX_REQUEST_LENGTH + SyncProtocol.FRAME_OVERHEAD);
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final ServerSocketChannel serverChannel;
+    private final String authToken;
+    private final ManifestCache manifestCache;
+    private final PluginRegistry pluginRegistry;
+    private final ArtifactStore artifactStore;
+    private final TransferAdmission transferAdmission;
+    private final BandwidthShaper bandwidthShaper;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService workerPool;
+    private final ScheduledExecutorService shapingTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "loader-shaping");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean running = true;
+
+    public NioLoaderServer(final int bindingPort,
+                           final String authToken,
+                           final PluginRegistry pluginRegistry,
+                           final ArtifactStore artifactStore,
+                           final TransferAdmission transferAdmission,
+                           final BandwidthShaper bandwidthShaper,
+                           final int ioThreads) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(bindingPort));
+        this.authToken = authToken;
+        this.pluginRegistry = pluginRegistry;
+        this.manifestCache = new ManifestCache(pluginRegistry, new EncryptionUtil(authToken));
+        this.artifactStore = artifactStore;
+        this.transferAdmission = transferAdmission;
+        this.bandwidthShaper = bandwidthShaper;
+        this.workerPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.eventLoops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    @Override
+    public void startListener() {
+        for (int i = 0; i < eventLoops.length; i++) {
+            new Thread(eventLoops[i], "loader-io-" + i).start();
+        }
+
+        // Accepting is cheap, so it stays blocking on the calling thread and hands connections to the loops.
+        int nextLoop = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                final EventLoop eventLoop = eventLoops[nextLoop++ % eventLoops.length];
+                eventLoop.execute(() -> eventLoop.register(channel));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) return;
+                LoaderBackend.getLogger().severe("An I/O error occurred in the listener: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void shutdownServer() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LoaderBackend.getLogger().warning("Failed to close the server channel: " + e.getMessage());
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+        workerPool.shutdownNow();
+        shapingTimer.shutdownNow();
+    }
+
+    private enum State {
+        HELLO,
+        READY,
+        PREPARING_MANIFEST,
+        WAITING_FOR_SLOT,
+        PREPARING_PAYLOADS,
+        SENDING_PAYLOADS,
+        REJECTED,
+        CLOSED
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void execute(final Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void register(final SocketChannel channel) {
+            final Connection connection = new Connection(channel, this);
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                LoaderBackend.getLogger().info("Connection from /" + connection.hostname + ". Authenticating...");
+            } catch (IOException e) {
+                connection.close("Failed to register: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(1000);
+                } catch (IOException e) {
+                    LoaderBackend.getLogger().severe("An I/O error occurred in an event loop: " + e.getMessage());
+                    continue;
+                }
+
+                for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                    task.run();
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    final Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (Exception e) {
+                        connection.close("Error during connection: " + e.getMessage());
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                final long now = System.currentTimeMillis();
+                for (SelectionKey key : selector.keys()) {
+                    final Connection connection = (Connection) key.attachment();
+                    if (connection.isIdle(now)) connection.close("Timed out.");
+                    else connection.sendQueueNoticeIfDue(now);
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close("Server shutting down.");
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The {@link SyncProtocol#DATA} frames of an artifact, its header and the chunks from a given one on, written
+     * straight from its bytes or its spool file. The frames hold the artifact until they're {@link #close() closed},
+     * so its spool file stays open even if the build is retired while they wait in the outbound queue.
+     */
+    private static final class ArtifactFrames {
+
+        private final Artifact artifact;
+        private final int firstChunk;
+        private final ByteBuffer frameHeader = ByteBuffer.allocate(5);
+        private final ByteBuffer frameTrailer = ByteBuffer.allocate(4);
+        private boolean closed;
+        private int frame;
+        private long position;
+        private long remaining;
+
+        private ArtifactFrames(Artifact artifact, int firstChunk) {
+            this.artifact = artifact;
+            this.firstChunk = firstChunk;
+            this.remaining = artifact.lengthFrom(firstChunk)
+                    + (long) (artifact.frameCount() - firstChunk) * (frameHeader.capacity() + frameTrailer.capacity());
+            startFrame();
+        }
+
+        private void startFrame() {
+            frameHeader.clear();
+            frameHeader.put(SyncProtocol.DATA).putInt(artifact.frameLength(frame)).flip();
+            frameTrailer.clear();
+            frameTrailer.putInt(artifact.frameChecksum(frame)).flip();
+            position = artifact.frameOffset(frame);
+        }
+
+        private long remaining() {
+            return remaining;
+        }
+
+        /**
+         * @return The number of bytes written, at most {@code maxBytes}.
+         */
+        private long writeTo(final SocketChannel channel, final long maxBytes) throws IOException {
+            long written = 0;
+            while (written < maxBytes && remaining > written) {
+                final long frameEnd = artifact.frameOffset(frame) + artifact.frameLength(frame);
+                final long budget = maxBytes - written;
+                final long count;
+                if (frameHeader.hasRemaining()) {
+                    count = write(channel, frameHeader, budget);
+                } else if (position < frameEnd) {
+                    count = writeBody(channel, Math.min(budget, frameEnd - position));
+                    position += count;
+                } else if (frameTrailer.hasRemaining()) {
+                    count = write(channel, frameTrailer, budget);
+                } else {
+                    frame = Artifact.nextFrame(frame, firstChunk);
+                    startFrame();
+                    continue;
+                }
+                if (count == 0) break; // The socket is full
+                written += count;
+            }
+            remaining -= written;
+            return written;
+        }
+
+        private long writeBody(final SocketChannel channel, final long length) throws IOException {
+            if (!artifact.isSpooled()) {
+                return channel.write(ByteBuffer.wrap(artifact.payload(), (int) position, (int) length));
+            }
+            return artifact.fileChannel().transferTo(position, length, channel);
+        }
+
+        private void close() {
+            if (closed) return;
+            closed = true;
+            artifact.release();
+        }
+    }
+
+    /**
+     * Lets go of the artifacts held by the provided frames.
+     */
+    private static void closeFrames(final Collection<Object> frames) {
+        for (Object frame : frames) {
+            if (frame instanceof ArtifactFrames) ((ArtifactFrames) frame).close();
+        }
+    }
+
+    private static long write(final SocketChannel channel, final ByteBuffer buffer, final long maxBytes) throws IOException {
+        final int limit = buffer.limit();
+        buffer.limit(buffer.position() + (int) Math.min(maxBytes, buffer.remaining()));
+        final long written = channel.write(buffer);
+        buffer.limit(limit);
+        return written;
+    }
+
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final String hostname;
+        private final String clientAddress;
+        private final Deque<Object> outbound = new ArrayDeque<>();
+        private SelectionKey key;
+        private ByteBuffer inbound = ByteBuffer.allocate(512);
+        private State state = State.HELLO;
+        private byte compression = SyncProtocol.COMPRESSION_NONE;
+        private Set<String> groups = Collections.emptySet();
+        private List<SyncProtocol.FetchRequest> requests;
+        private TransferAdmission.Ticket ticket;
+        private BandwidthShaper.Lane lane;
+        private boolean throttled;
+        private long lastQueueNotice;
+        private long lastActivity = System.currentTimeMillis();
+        private PluginRegistry.Snapshot fetchSnapshot;
+        private int sent;
+        private int resumed;
+        private int patched;
+        private int solid;
+        private long sentBytes;
+
+        private Connection(SocketChannel channel, EventLoop eventLoop) {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.clientAddress = channel.socket().getInetAddress().getHostAddress();
+            this.hostname = clientAddress + ":" + channel.socket().getPort();
+        }
+
+        private void onReadable() throws Exception {
+            if (!inbound.hasRemaining()) {
+                if (inbound.capacity() >= MAX_BUFFERED_BYTES) throw new IOException("Requests exceed " + MAX_BUFFERED_BYTES + " bytes.");
+                final ByteBuffer grown = ByteBuffer.allocate(Math.min(inbound.capacity() * 2, MAX_BUFFERED_BYTES));
+                inbound.flip();
+                grown.put(inbound);
+                inbound = grown;
+            }
+
+            final int read = channel.read(inbound);
+            if (read == -1) {
+                close(state == State.READY && outbound.isEmpty() ? null : "Client disconnected.");
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            processInbound();
+        }
+
+        /**
+         * Handles the complete requests received so far. Requests keep arriving while one is being served, and
+         * are only handled once the connection is ready again.
+         */
+        private void processInbound() throws Exception {
+            inbound.flip();
+            try {
+                while (state == State.HELLO || state == State.READY) {
+                    final SyncProtocol.Frame frame = SyncProtocol.pollFrame(inbound);
+                    if (frame == null) return;
+                    if (state == State.HELLO) onHello(frame);
+                    else onRequest(frame);
+                }
+            } finally {
+                inbound.compact();
+            }
+        }
+
+        private void onHello(final SyncProtocol.Frame frame) throws Exception {
+            if (frame.type != SyncProtocol.HELLO) throw new IOException("Expected a hello, got frame type " + frame.type);
+            final DataInputStream body = frame.body();
+            final int version = body.readInt();
+            if (version != SyncProtocol.VERSION) {
+                LoaderBackend.getLogger().warning("Client /" + hostname + " speaks protocol version " + version + ", expected " + SyncProtocol.VERSION + ".");
+                state = State.REJECTED;
+                enqueue(ByteBuffer.wrap(SyncProtocol.errorFrame("Unsupported protocol version " + version + ", the backend speaks " + SyncProtocol.VERSION)));
+                return;
+            }
+            if (!authToken.equals(body.readUTF())) {
+                LoaderBackend.getLogger().warning("Authentication failed for /" + hostname + ". Invalid token.");
+                state = State.REJECTED;
+                enqueue(ByteBuffer.wrap(SyncProtocol.errorFrame("Invalid auth token")));
+                return;
+            }
+            if (!SyncProtocol.isReady(pluginRegistry)) {
+                LoaderBackend.getLogger().info("Turned /" + hostname + " away, there are no plugins to serve yet.");
+                state = State.REJECTED;
+                enqueue(ByteBuffer.wrap(SyncProtocol.notReadyFrame()));
+                return;
+            }
+            LoaderBackend.getLogger().info("Client /" + hostname + " authenticated successfully.");
+            compression = SyncProtocol.negotiateCompression(body.readByte(), artifactStore);
+            groups = SyncProtocol.readGroups(body);
+            state = State.READY;
+            enqueue(ByteBuffer.wrap(SyncProtocol.helloFrame(compression, artifactStore)));
+        }
+
+        private void onRequest(final SyncProtocol.Frame frame) throws Exception {
+            switch (frame.type) {
+                case SyncProtocol.MANIFEST:
+                    final DataInputStream body = frame.body();
+                    final long clientEpoch = body.readLong();
+                    final long clientGeneration = body.readLong();
+                    state = State.PREPARING_MANIFEST;
+                    // A delta if the client has a recent generation, shared by every client of the same groups.
+                    workerPool.execute(() -> prepareManifest(() -> manifestCache.frameFor(groups, clientEpoch, clientGeneration)));
+                    break;
+                case SyncProtocol.REPLICATE:
+                    state = State.PREPARING_MANIFEST;
+                    workerPool.execute(() -> prepareManifest(manifestCache::replicaFrame));
+                    break;
+                case SyncProtocol.FETCH:
+                    requests = SyncProtocol.readFetch(frame.body());
+                    state = State.WAITING_FOR_SLOT;
+                    requestTransferSlot();
+                    break;
+                case SyncProtocol.DICTIONARY:
+                    enqueue(ByteBuffer.wrap(SyncProtocol.dictionaryFrame(artifactStore)));
+                    break;
+                case SyncProtocol.PING:
+                    enqueue(ByteBuffer.wrap(SyncProtocol.frame(SyncProtocol.PONG, frame.body)));
+                    break;
+                default:
+                    throw new IOException("Unexpected frame type " + frame.type);
+            }
+        }
+
+        /**
+         * Builds a manifest, or the replica of the whole generation for a follower, off the event loop.
+         */
+        private void prepareManifest(final Callable<byte[]> manifest) {
+            try {
+                final byte[] frame = manifest.call();
+                eventLoop.execute(() -> {
+                    if (state == State.CLOSED) return;
+                    enqueue(ByteBuffer.wrap(frame));
+                    ready();
+                });
+            } catch (Exception e) {
+                eventLoop.execute(() -> close("Failed to prepare manifest: " + e.getMessage()));
+            }
+        }
+
+        /**
+         * Goes back to handling requests, starting with those that arrived meanwhile.
+         */
+        private void ready() {
+            state = State.READY;
+            try {
+                if (inbound.position() > 0) processInbound();
+            } catch (Exception e) {
+                close("Error during connection: " + e.getMessage());
+            }
+        }
+
+        private void requestTransferSlot() throws Exception {
+            // Slots are released from any thread, so the transfer always starts on this connection's event loop.
+            ticket = transferAdmission.request(clientAddress, () -> eventLoop.execute(this::startTransfer));
+            if (ticket.isRejected()) {
+                final long retryAfterMillis = transferAdmission.retryAfterMillis();
+                LoaderBackend.getLogger().warning("Transfer queue is full, told /" + hostname + " to retry in " + retryAfterMillis + "ms. " + transferAdmission.stats());
+                state = State.REJECTED;
+                enqueue(ByteBuffer.wrap(SyncProtocol.busyFrame(retryAfterMillis)));
+                return;
+            }
+            final int position = ticket.position();
+            if (position > 0) {
+                LoaderBackend.getLogger().info("Client /" + hostname + " queued for transfer, position " + position + ".");
+                sendQueueNotice(System.currentTimeMillis());
+            }
+        }
+
+        private void sendQueueNoticeIfDue(final long now) {
+            if (state == State.WAITING_FOR_SLOT && now - lastQueueNotice >= SyncProtocol.QUEUE_UPDATE_MILLIS) {
+                sendQueueNotice(now);
+            }
+        }
+
+        private void sendQueueNotice(final long now) {
+            final int position = ticket.position();
+            if (position == 0) return; // Admitted already, the transfer is about to start
+            lastQueueNotice = now;
+            try {
+                enqueue(ByteBuffer.wrap(SyncProtocol.queuedFrame(position, ticket.estimatedWaitMillis())));
+            } catch (Exception e) {
+                close("Failed to send queue position: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Called on this connection's event loop once it holds a transfer slot.
+         */
+        private void startTransfer() {
+            if (state == State.CLOSED) return; // The slot was released when closing
+            state = State.PREPARING_PAYLOADS;
+            lane = bandwidthShaper.open(clientAddress);
+            workerPool.execute(this::preparePayloads);
+        }
+
+        private void preparePayloads() {
+            final List<Object> frames = new ArrayList<>();
+            try {
+                // Served from the generation current once the slot is free, matched by hash.
+                final PluginRegistry.Snapshot snapshot = pluginRegistry.current().view(groups);
+                int sentPayloads = 0;
+                int resumedPayloads = 0;
+                int patchedPayloads = 0;
+                int solidPayloads = 0;
+                for (SyncProtocol.FetchRequest request : requests) {
+                    final PluginInfo pluginInfo = SyncProtocol.resolve(snapshot, request);
+                    if (pluginInfo == null) {
+                        frames.add(ByteBuffer.wrap(SyncProtocol.missingFrame(request.name)));
+                        continue;
+                    }
+                    final Artifact artifact = SyncProtocol.artifactFor(artifactStore, pluginInfo, request, compression);
+                    final int firstChunk = SyncProtocol.firstChunk(artifact, request);
+                    final byte[] payloadFrame;
+                    try {
+                        payloadFrame = SyncProtocol.payloadFrame(pluginInfo.name(), artifact, firstChunk);
+                    } catch (Exception e) {
+                        artifact.release();
+                        throw e;
+                    }
+                    sentPayloads++;
+                    if (firstChunk > 0) resumedPayloads++;
+                    if (artifact.encoding() == Artifact.Encoding.PATCH) patchedPayloads++;
+                    if (artifact.encoding() == Artifact.Encoding.SOLID) solidPayloads++;
+                    frames.add(ByteBuffer.wrap(payloadFrame));
+                    frames.add(new ArtifactFrames(artifact, firstChunk));
+                }
+                final int sentCount = sentPayloads;
+                final int resumedCount = resumedPayloads;
+                final int patchedCount = patchedPayloads;
+                final int solidCount = solidPayloads;
+                eventLoop.execute(() -> {
+                    if (state == State.CLOSED) {
+                        closeFrames(frames);
+                        return;
+                    }
+                    state = State.SENDING_PAYLOADS;
+                    fetchSnapshot = snapshot;
+                    sent = sentCount;
+                    resumed = resumedCount;
+                    patched = patchedCount;
+                    solid = solidCount;
+                    sentBytes = 0;
+                    for (Object frame : frames) {
+                        enqueue(frame);
+                    }
+                });
+            } catch (Exception e) {
+                closeFrames(frames);
+                eventLoop.execute(() -> close("Failed to prepare payloads: " + e.getMessage()));
+            }
+        }
+
+        private void finishTransfer() {
+            LoaderBackend.getLogger().info("Finished syncing /" + hostname + " to generation " + fetchSnapshot.generation() + ": sent " + sent + " of "
+                    + requests.size() + " requested plugins (" + sentBytes + " bytes, " + resumed + " resumed, " + patched + " patched, " + solid + " solid). " + artifactStore.stats() + ", " + manifestCache.stats());
+            ticket.close();
+            ticket = null;
+            lane.close();
+            lane = null;
+            requests = null;
+            ready();
+        }
+
+        private void enqueue(final Object frame) {
+            outbound.add(frame);
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        private void onWritable() throws IOException {
+            while (!outbound.isEmpty()) {
+                final Object frame = outbound.peek();
+                final long remaining = frame instanceof ByteBuffer ? ((ByteBuffer) frame).remaining() : ((ArtifactFrames) frame).remaining();
+                final long allowed = lane == null ? remaining : lane.allowance(remaining);
+                if (allowed == 0) {
+                    throttle(remaining);
+                    return;
+                }
+
+                final long written = frame instanceof ByteBuffer
+                        ? write(channel, (ByteBuffer) frame, allowed)
+                        : ((ArtifactFrames) frame).writeTo(channel, allowed);
+                progress(written);
+                if (lane != null) lane.consumed(written);
+
+                if (written < remaining) {
+                    // Either the socket is full and OP_WRITE calls back, or the shaper's allowance ran out.
+                    if (written < allowed) return;
+                    continue;
+                }
+                if (frame instanceof ArtifactFrames) ((ArtifactFrames) frame).close();
+                outbound.poll();
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (state == State.SENDING_PAYLOADS) {
+                finishTransfer();
+            } else if (state == State.REJECTED) {
+                close(null);
+            }
+        }
+
+        /**
+         * Stops writing until the shaper is expected to allow the next write.
+         */
+        private void throttle(final long wanted) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (throttled) return;
+            throttled = true;
+            shapingTimer.schedule(() -> eventLoop.execute(() -> {
+                throttled = false;
+                if (state != State.CLOSED) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }), lane.nanosUntilAllowed(wanted), TimeUnit.NANOSECONDS);
+        }
+
+        private void progress(final long written) {
+            if (written <= 0) return;
+            sentBytes += written;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        private boolean isIdle(final long now) {
+            return state != State.WAITING_FOR_SLOT
+                    && state != State.PREPARING_MANIFEST
+                    && state != State.PREPARING_PAYLOADS
+                    && now - lastActivity > IDLE_TIMEOUT_MILLIS;
+        }
+
+        private void close(final String reason) {
+            if (state == State.CLOSED) return;
+            state = State.CLOSED;
+
+            if (reason != null) LoaderBackend.getLogger().warning("Closing connection with /" + hostname + ": " + reason);
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            closeFrames(outbound);
+            outbound.clear();
+
+            // Releases the slot, or the place in the queue.
+            if (ticket != null) ticket.close();
+            if (lane != null) lane.close();
+            LoaderBackend.getLogger().info("Connection with /" + hostname + " closed.");
+        }
+    }
+}
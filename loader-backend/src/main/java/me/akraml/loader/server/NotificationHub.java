@@ -0,0 +1,175 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginRegistry;
+import me.akraml.loader.LoaderBackend;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps long-lived sessions with clients to tell them when the plugin registry changed, so they don't have to
+ * wait for someone to run a sync.
+ * <p>
+ * A client sends its auth token, and the hub answers with a {@link #GENERATION} message: the type byte followed
+ * by the registry's {@link PluginRegistry#epoch() epoch} and current generation ({@code long}s). Generations restart
+ * with the backend, so a client tells a restart apart by the epoch. The hub sends another message whenever the
+ * registry publishes a new generation, and a single {@link #PING} byte every heartbeat interval, which the client answers with
+ * {@link #PONG}. A session that misses three heartbeats is closed.
+ */
+public final class NotificationHub {
+
+    public static final byte PING = 1;
+    public static final byte PONG = 2;
+    public static final byte GENERATION = 3;
+
+    private final ServerSocket serverSocket;
+    private final String authToken;
+    private final long heartbeatMillis;
+    private final PluginRegistry pluginRegistry;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final ExecutorService sessionPool = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+
+    public NotificationHub(final int port, final String authToken, final int heartbeatSeconds,
+                           final PluginRegistry pluginRegistry) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.authToken = authToken;
+        this.heartbeatMillis = TimeUnit.SECONDS.toMillis(heartbeatSeconds);
+        this.pluginRegistry = pluginRegistry;
+    }
+
+    public void start() {
+        final Thread acceptor = new Thread(this::acceptLoop, "Notification-Hub");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        heartbeats.scheduleAtFixedRate(() -> broadcast(PING, -1), heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        pluginRegistry.addListener(snapshot -> publish(snapshot.generation()));
+        LoaderBackend.getLogger().info("Notification hub listening on port " + serverSocket.getLocalPort() + ".");
+    }
+
+    /**
+     * Pushes a new registry generation to every connected client.
+     */
+    private void publish(final long generation) {
+        broadcast(GENERATION, generation);
+        LoaderBackend.getLogger().info("Notified " + sessions.size() + " clients of registry generation " + generation + ".");
+    }
+
+    public void shutdown() {
+        heartbeats.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LoaderBackend.getLogger().warning("Failed to close the notification hub: " + e.getMessage());
+        }
+        for (final Session session : sessions) {
+            session.close();
+        }
+        sessionPool.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                sessionPool.submit(() -> handleSession(socket));
+            } catch (SocketException e) {
+                if (serverSocket.isClosed()) return;
+                LoaderBackend.getLogger().warning("SocketException in notification hub: " + e.getMessage());
+            } catch (IOException e) {
+                LoaderBackend.getLogger().severe("An I/O error occurred in the notification hub: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleSession(final Socket socket) {
+        final String hostname = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        final Session session;
+        try {
+            // Missing three heartbeats in a row means the client is gone.
+            socket.setSoTimeout((int) heartbeatMillis * 3);
+            socket.setTcpNoDelay(true);
+            session = new Session(socket, pluginRegistry.epoch());
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (!authToken.equals(in.readUTF())) {
+                LoaderBackend.getLogger().warning("Notification session from /" + hostname + " failed to authenticate.");
+                return;
+            }
+            sessions.add(session);
+            session.send(GENERATION, pluginRegistry.current().generation());
+            LoaderBackend.getLogger().info("Notification session opened with /" + hostname + ".");
+
+            while (true) {
+                if (in.readByte() != PONG) throw new IOException("Unexpected message from the client");
+            }
+        } catch (SocketTimeoutException e) {
+            LoaderBackend.getLogger().warning("Notification session with /" + hostname + " missed its heartbeats.");
+        } catch (IOException e) {
+            // Closed by the client or by the hub
+        } finally {
+            sessions.remove(session);
+            session.close();
+        }
+    }
+
+    private void broadcast(final byte type, final long value) {
+        for (final Session session : sessions) {
+            try {
+                session.send(type, value);
+            } catch (IOException e) {
+                sessions.remove(session);
+                session.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Session {
+        private final Socket socket;
+        private final long epoch;
+        private final DataOutputStream out;
+
+        private Session(final Socket socket, final long epoch) throws IOException {
+            this.socket = socket;
+            this.epoch = epoch;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        private synchronized void send(final byte type, final long value) throws IOException {
+            out.writeByte(type);
+            if (type == GENERATION) {
+                out.writeLong(epoch);
+                out.writeLong(value);
+            }
+            out.flush();
+        }
+
+        private void close() {
+            closeQuietly(socket);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginInfo;
+import dev.al3mid3x.discovery.PluginRegistry;
+import dev.al3mid3x.security.EncryptionUtil;
+import me.akraml.loader.LoaderBackend;
+import me.akraml.loader.utility.FileUtils;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps this backend a read replica of a primary one, so clients can sync from any of them. Every pass connects to
+ * the primary over the sync protocol, asks for its whole current generation with {@link SyncProtocol#REPLICATE},
+ * fetches the builds missing here like any client would and publishes the same plugins, groups and revisions in
+ * this backend's own registry. From there, artifacts, patches and solid payloads are built locally.
+ * <p>
+ * Builds are kept in their directory by hash, along with the replicated generation, so a follower restarting while
+ * its primary is unreachable still serves the last generation it replicated.
+ */
+public final class ReplicaFollower {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int STATE_VERSION = 1;
+
+    private final String primaryAddress;
+    private final int primaryPort;
+    private final String authToken;
+    private final EncryptionUtil encryptionUtil;
+    private final File directory;
+    private final File stateFile;
+    private final PluginRegistry pluginRegistry;
+    private final ArtifactStore artifactStore;
+
+    private long primaryEpoch;
+    private long primaryGeneration;
+    private boolean failing;
+
+    /**
+     * @param directory Directory the replicated builds are kept in.
+     */
+    public ReplicaFollower(final String primaryAddress,
+                           final int primaryPort,
+                           final String authToken,
+                           final File directory,
+                           final PluginRegistry pluginRegistry,
+                           final ArtifactStore artifactStore) {
+        this.primaryAddress = primaryAddress;
+        this.primaryPort = primaryPort;
+        this.authToken = authToken;
+        this.encryptionUtil = new EncryptionUtil(authToken);
+        this.directory = directory;
+        this.stateFile = new File(directory, "replica-registry.yml");
+        this.pluginRegistry = pluginRegistry;
+        this.artifactStore = artifactStore;
+        if (!directory.exists() && !directory.mkdirs()) {
+            LoaderBackend.getLogger().warning("Failed to create the replica directory " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return The primary, as {@code address:port}.
+     */
+    public String primary() {
+        return primaryAddress + ":" + primaryPort;
+    }
+
+    /**
+     * Publishes the generation replicated before the last shutdown, if every one of its builds is still here.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void restore() {
+        if (!stateFile.isFile()) return;
+        try (final InputStream inputStream = new FileInputStream(stateFile)) {
+            final Map<String, Object> root = new Yaml().load(inputStream);
+            if (root == null || !Integer.valueOf(STATE_VERSION).equals(root.get("version"))) return;
+
+            final List<ReplicatedPlugin> plugins = new ArrayList<>();
+            for (final Map<String, Object> serialized : (List<Map<String, Object>>) root.get("plugins")) {
+                final ReplicatedPlugin plugin = new ReplicatedPlugin(
+                        (String) serialized.get("name"),
+                        (String) serialized.get("main"),
+                        (String) serialized.get("hash"),
+                        ((Number) serialized.get("size")).longValue(),
+                        ((Number) serialized.get("revision")).longValue(),
+                        new TreeSet<>((List<String>) serialized.get("groups")));
+                if (fileOf(plugin.hash).length() != plugin.size) {
+                    LoaderBackend.getLogger().info("The replicated build of " + plugin.name + " is gone, waiting for the primary.");
+                    return;
+                }
+                plugins.add(plugin);
+            }
+            publish(plugins);
+            primaryEpoch = ((Number) root.get("epoch")).longValue();
+            primaryGeneration = ((Number) root.get("generation")).longValue();
+            LoaderBackend.getLogger().info("Restored generation " + primaryGeneration + " of the primary with " + plugins.size() + " plugins.");
+        } catch (Exception e) {
+            LoaderBackend.getLogger().warning("Failed to restore the replicated generation: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replicates the primary's current generation, if it's not the one replicated last. On failure, this backend
+     * keeps serving the generation it has, and the next pass tries again.
+     */
+    public synchronized void replicate() {
+        final long start = System.currentTimeMillis();
+        try (final Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(primaryAddress, primaryPort), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            out.write(SyncProtocol.frame(SyncProtocol.HELLO, body -> {
+                body.writeInt(SyncProtocol.VERSION);
+                body.writeUTF(authToken);
+                body.writeByte(SyncProtocol.COMPRESSION_NONE);
+                body.writeInt(0); // Every group
+            }));
+            out.flush();
+            expect(in, SyncProtocol.HELLO);
+            out.write(SyncProtocol.frame(SyncProtocol.REPLICATE, new byte[0]));
+            out.flush();
+
+            final DataInputStream replica = expect(in, SyncProtocol.REPLICATE).body();
+            final long epoch = replica.readLong();
+            final long generation = replica.readLong();
+            if (failing) {
+                failing = false;
+                LoaderBackend.getLogger().info("Reached the primary at " + primary() + " again.");
+            }
+            if (epoch == primaryEpoch && generation == primaryGeneration) return;
+
+            final List<ReplicatedPlugin> plugins = readPlugins(replica);
+            final List<ReplicatedPlugin> missing = new ArrayList<>();
+            long missingBytes = 0;
+            for (ReplicatedPlugin plugin : plugins) {
+                if (fileOf(plugin.hash).length() != plugin.size) {
+                    missing.add(plugin);
+                    missingBytes += plugin.size;
+                }
+            }
+            if (!missing.isEmpty()) fetch(in, out, missing);
+
+            final PluginRegistry.Snapshot snapshot = publish(plugins);
+            primaryEpoch = epoch;
+            primaryGeneration = generation;
+            save(plugins);
+            LoaderBackend.getLogger().info("Replicated generation " + generation + " of the primary with " + plugins.size() + " plugins as generation "
+                    + snapshot.generation() + ", fetched " + missing.size() + " builds (" + missingBytes + " bytes) in " + (System.currentTimeMillis() - start) + "ms.");
+        } catch (Exception e) {
+            if (!failing) {
+                failing = true;
+                LoaderBackend.getLogger().warning("Failed to replicate the primary at " + primary() + " (" + e.getClass().getSimpleName() + ": " + e.getMessage()
+                        + "), serving generation " + pluginRegistry.current().generation() + " meanwhile.");
+            }
+        }
+    }
+
+    private List<ReplicatedPlugin> readPlugins(final DataInputStream in) throws Exception {
+        final int count = in.readInt();
+        final List<ReplicatedPlugin> plugins = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String name = in.readUTF();
+            final String mainClass = encryptionUtil.decryptString(in.readUTF());
+            final String hash = in.readUTF();
+            final long size = in.readLong();
+            final long revision = in.readLong();
+            final Set<String> groups = new TreeSet<>();
+            for (int groupCount = in.readInt(); groupCount > 0; groupCount--) {
+                groups.add(in.readUTF());
+            }
+            plugins.add(new ReplicatedPlugin(name, mainClass, hash, size, revision, groups));
+        }
+        return plugins;
+    }
+
+    /**
+     * Fetches the provided builds from the primary, as full payloads, and keeps them by hash once verified.
+     */
+    private void fetch(final DataInputStream in, final DataOutputStream out, final List<ReplicatedPlugin> missing) throws Exception {
+        out.write(SyncProtocol.frame(SyncProtocol.FETCH, body -> {
+            body.writeInt(missing.size());
+            for (ReplicatedPlugin plugin : missing) {
+                body.writeUTF(plugin.name);
+                body.writeUTF(plugin.hash);
+                body.writeLong(0);
+                body.writeUTF("");
+                body.writeUTF("");
+            }
+        }));
+        out.flush();
+
+        final Map<String, ReplicatedPlugin> byName = new HashMap<>();
+        for (ReplicatedPlugin plugin : missing) byName.put(plugin.name, plugin);
+        for (int received = 0; received < missing.size(); ) {
+            final SyncProtocol.Frame frame = SyncProtocol.readFrame(in, SyncProtocol.MAX_ANSWER_LENGTH);
+            final DataInputStream body = frame.body();
+            switch (frame.type) {
+                case SyncProtocol.QUEUED:
+                    break;
+                case SyncProtocol.BUSY:
+                    throw new IOException("The primary is busy, retrying in " + body.readInt() + "ms at the latest");
+                case SyncProtocol.MISSING:
+                    throw new IOException("The primary moved on from the build of " + body.readUTF());
+                case SyncProtocol.PAYLOAD:
+                    final ReplicatedPlugin plugin = byName.get(body.readUTF());
+                    final long length = body.readLong();
+                    final long firstChunk = body.readLong();
+                    final byte kind = body.readByte();
+                    if (plugin == null || firstChunk != 0 || kind != SyncProtocol.FULL_PAYLOAD) throw new IOException("The primary sent an unexpected payload");
+                    receive(in, plugin, length);
+                    received++;
+                    break;
+                default:
+                    throw unexpected(frame);
+            }
+        }
+    }
+
+    private void receive(final DataInputStream in, final ReplicatedPlugin plugin, final long length) throws Exception {
+        final byte[] header = expect(in, SyncProtocol.DATA).body;
+        final File part = new File(directory, plugin.hash + ".part");
+        final MessageDigest digest = FileUtils.newSha256();
+        try (final InputStream plain = encryptionUtil.decryptingStream(new DataFrames(in, length - header.length), header, 0);
+             final OutputStream file = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(part)), digest)) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read = plain.read(buffer); read != -1; read = plain.read(buffer)) {
+                file.write(buffer, 0, read);
+            }
+        } catch (Exception e) {
+            Files.deleteIfExists(part.toPath());
+            throw e;
+        }
+        if (!FileUtils.toHex(digest.digest()).equals(plugin.hash)) {
+            Files.deleteIfExists(part.toPath());
+            throw new IOException("The build of " + plugin.name + " doesn't match its hash");
+        }
+        Files.move(part.toPath(), fileOf(plugin.hash).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Publishes the provided plugins, preparing the artifacts of the new builds, retiring those of the builds they
+     * replace and dropping those of the removed plugins like the hot reloader does on the primary, then deletes the
+     * builds nothing refers to anymore.
+     */
+    private PluginRegistry.Snapshot publish(final List<ReplicatedPlugin> replicated) {
+        final PluginRegistry.Snapshot previous = pluginRegistry.current();
+        final Map<String, PluginInfo> plugins = new HashMap<>();
+        final Set<String> hashes = new HashSet<>();
+        for (ReplicatedPlugin plugin : replicated) {
+            final Map<String, Object> description = new LinkedHashMap<>();
+            description.put("name", plugin.name);
+            description.put("main", plugin.mainClass);
+            final PluginInfo pluginInfo = new PluginInfo(plugin.name, plugin.mainClass, fileOf(plugin.hash), plugin.hash, plugin.size,
+                    plugin.revision, description, plugin.groups);
+            plugins.put(plugin.name.toLowerCase(), pluginInfo);
+            hashes.add(plugin.hash);
+
+            final PluginInfo existingInfo = previous.plugins().get(plugin.name.toLowerCase());
+            if (existingInfo == null || !existingInfo.hash().equals(plugin.hash)) artifactStore.prepare(pluginInfo);
+        }
+        for (String pluginName : previous.plugins().keySet()) {
+            if (!plugins.containsKey(pluginName)) artifactStore.invalidate(pluginName);
+        }
+        final PluginRegistry.Snapshot snapshot = pluginRegistry.publish(plugins);
+        for (PluginInfo pluginInfo : plugins.values()) {
+            final PluginInfo existingInfo = previous.plugins().get(pluginInfo.name().toLowerCase());
+            if (existingInfo != null && !existingInfo.hash().equals(pluginInfo.hash())) artifactStore.retire(pluginInfo);
+        }
+
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(".jar"));
+        if (files != null) {
+            for (File file : files) {
+                if (!hashes.contains(file.getName().substring(0, file.getName().length() - 4)) && !file.delete()) {
+                    LoaderBackend.getLogger().warning("Failed to delete the replicated build " + file.getName());
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void save(final List<ReplicatedPlugin> plugins) {
+        final List<Map<String, Object>> serializedPlugins = new ArrayList<>();
+        for (ReplicatedPlugin plugin : plugins) {
+            final Map<String, Object> serialized = new LinkedHashMap<>();
+            serialized.put("name", plugin.name);
+            serialized.put("main", plugin.mainClass);
+            serialized.put("hash", plugin.hash);
+            serialized.put("size", plugin.size);
+            serialized.put("revision", plugin.revision);
+            serialized.put("groups", new ArrayList<>(plugin.groups));
+            serializedPlugins.add(serialized);
+        }
+        final Map<String, Object> root = new LinkedHashMap<>();
+        root.put("version", STATE_VERSION);
+        root.put("epoch", primaryEpoch);
+        root.put("generation", primaryGeneration);
+        root.put("plugins", serializedPlugins);
+
+        final DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        try {
+            final Path tempFile = Files.createTempFile(directory.toPath(), "replica-registry", ".tmp");
+            try (final Writer writer = new OutputStreamWriter(Files.newOutputStream(tempFile), StandardCharsets.UTF_8)) {
+                new Yaml(options).dump(root, writer);
+            }
+            Files.move(tempFile, stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            LoaderBackend.getLogger().warning("Failed to save the replicated generation: " + e.getMessage());
+        }
+    }
+
+    private File fileOf(final String hash) {
+        return new File(directory, hash + ".jar");
+    }
+
+    private static SyncProtocol.Frame expect(final DataInputStream in, final byte type) throws IOException {
+        final SyncProtocol.Frame frame = SyncProtocol.readFrame(in, SyncProtocol.MAX_ANSWER_LENGTH);
+        if (frame.type != type) throw unexpected(frame);
+        return frame;
+    }
+
+    private static IOException unexpected(final SyncProtocol.Frame frame) throws IOException {
+        if (frame.type == SyncProtocol.ERROR) return new IOException("The primary refused the request: " + frame.body().readUTF());
+        return new IOException("Unexpected frame type " + frame.type);
+    }
+
+    /**
+     * The encrypted bytes of a payload, read off its data frames.
+     */
+    private static final class DataFrames extends InputStream {
+        private final DataInputStream in;
+        private long remaining;
+        private byte[] frame = new byte[0];
+        private int position;
+
+        private DataFrames(DataInputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            while (position == frame.length) {
+                if (remaining <= 0) return -1;
+                frame = expect(in, SyncProtocol.DATA).body;
+                position = 0;
+                remaining -= frame.length;
+                if (remaining < 0) throw new IOException("Payload is longer than announced");
+            }
+            final int read = Math.min(length, frame.length - position);
+            System.arraycopy(frame, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+    }
+
+    private static final class ReplicatedPlugin {
+        private final String name;
+        private final String mainClass;
+        private final String hash;
+        private final long size;
+        private final long revision;
+        private final Set<String> groups;
+
+        private ReplicatedPlugin(String name, String mainClass, String hash, long size, long revision, Set<String> groups) {
+            this.name = name;
+            this.mainClass = mainClass;
+            this.hash = hash;
+            this.size = size;
+            this.revision = revision;
+            this.groups = groups;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package me.akraml.loader.server;
+
+/**
+ * A connection engine serving the sync protocol to loader clients.
+ * The engine is picked with the {@code server-engine} key of the backend's config.yml.
+ */
+public interface ServerEngine {
+
+    /**
+     * Accepts and serves connections until {@link #shutdownServer()} is called, blocking the calling thread.
+     */
+    void startListener();
+
+    /**
+     * Stops accepting connections and releases the engine's threads.
+     */
+    void shutdownServer();
+}
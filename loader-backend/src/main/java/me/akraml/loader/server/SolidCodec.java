@@ -0,0 +1,157 @@
+package me.akraml.loader.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Re-encodes a plugin JAR as a single deflate stream with a preset {@link CompressionDictionary}, so the redundancy
+ * between its entries, and with the classes other plugins shade, is compressed away.
+ * <p>
+ * Deflated entries can only be sent inflated if the client can deflate them again into the very same bytes, so each
+ * one is deflated again here at every level until one reproduces it; those that can't be reproduced, like every other
+ * part of the JAR, are sent as they are. The re-encoded stream is the length of the JAR, followed by records up to
+ * {@link #END}:
+ * <ul>
+ *     <li>{@link #LITERAL}: an {@code int} length and as many bytes of the JAR.</li>
+ *     <li>{@link #INFLATED}: the deflate level reproducing the entry, the {@code int} length and CRC-32 of its stored
+ *     data, then the {@code int} length of its content and the content itself.</li>
+ * </ul>
+ */
+final class SolidCodec {
+
+    static final byte END = 0;
+    static final byte LITERAL = 1;
+    static final byte INFLATED = 2;
+
+    /** Levels tried to reproduce an entry, the usual defaults of JAR tools first. */
+    private static final int[] LEVELS = {6, 9, 1, 2, 3, 4, 5, 7, 8};
+    /** Entries that couldn't be reproduced before giving up on a JAR, as it wasn't built with zlib's deflate. */
+    private static final int MAX_IRREPRODUCIBLE_ENTRIES = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SolidCodec() {
+    }
+
+    /**
+     * @return The re-encoded JAR, deflated at the provided level with the provided preset dictionary.
+     * @throws IOException If the file isn't a ZIP archive {@link JarLayout} can read.
+     */
+    static byte[] encode(final File jar, final byte[] dictionary, final int level) throws IOException {
+        final ByteBuffer content = JarLayout.map(jar);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.capacity() / 2);
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary.length > 0) deflater.setDictionary(dictionary);
+            final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, BUFFER_SIZE));
+            out.writeLong(content.capacity());
+
+            int literalStart = 0;
+            int reproducingLevel = -1;
+            int irreproducible = 0;
+            for (JarLayout.Entry entry : JarLayout.entriesOf(content)) {
+                if (entry.method != JarLayout.DEFLATED || entry.size == 0 || entry.dataOffset < literalStart) continue;
+                if (reproducingLevel < 0 && irreproducible >= MAX_IRREPRODUCIBLE_ENTRIES) break;
+
+                final ByteBuffer data = JarLayout.dataOf(content, entry);
+                final byte[] stored = new byte[data.remaining()];
+                data.get(stored);
+                final byte[] inflated = inflate(stored, entry.size);
+                final int entryLevel = inflated == null ? -1 : reproducingLevel(inflated, stored, reproducingLevel);
+                if (entryLevel < 0) {
+                    irreproducible++;
+                    continue;
+                }
+                reproducingLevel = entryLevel;
+
+                writeLiteral(out, content, literalStart, entry.dataOffset);
+                out.writeByte(INFLATED);
+                out.writeByte(entryLevel);
+                out.writeInt(stored.length);
+                out.writeInt(checksum(stored));
+                out.writeInt(inflated.length);
+                out.write(inflated);
+                literalStart = entry.dataOffset + entry.compressedSize;
+            }
+            writeLiteral(out, content, literalStart, content.capacity());
+            out.writeByte(END);
+            out.close();
+        } finally {
+            deflater.end();
+        }
+        // Raw inflaters may need a byte past the end of the stream, as documented by Inflater.
+        bytes.write(0);
+        return bytes.toByteArray();
+    }
+
+    private static void writeLiteral(final DataOutputStream out, final ByteBuffer content, final int start, final int end) throws IOException {
+        if (end <= start) return;
+        final byte[] literal = new byte[end - start];
+        ((ByteBuffer) content.duplicate().position(start)).get(literal);
+        out.writeByte(LITERAL);
+        out.writeInt(literal.length);
+        out.write(literal);
+    }
+
+    /**
+     * @return The content of the provided stored data, or {@code null} if it isn't the complete deflate stream of it.
+     */
+    static byte[] inflate(final byte[] stored, final int size) {
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored);
+            final byte[] inflated = new byte[size];
+            final int length = inflater.inflate(inflated);
+            return length == size && inflater.finished() ? inflated : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return The deflate level turning the content back into the stored data, or -1 if none does.
+     */
+    private static int reproducingLevel(final byte[] inflated, final byte[] stored, final int preferredLevel) {
+        final byte[] buffer = new byte[stored.length + 1];
+        if (preferredLevel >= 0 && reproduces(inflated, stored, preferredLevel, buffer)) return preferredLevel;
+        for (int level : LEVELS) {
+            if (level != preferredLevel && reproduces(inflated, stored, level, buffer)) return level;
+        }
+        return -1;
+    }
+
+    private static boolean reproduces(final byte[] inflated, final byte[] stored, final int level, final byte[] buffer) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(inflated);
+            deflater.finish();
+            int length = 0;
+            // One byte more than the stored data, to tell a longer output apart.
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished() || length != stored.length) return false;
+            for (int i = 0; i < length; i++) {
+                if (buffer[i] != stored[i]) return false;
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int checksum(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
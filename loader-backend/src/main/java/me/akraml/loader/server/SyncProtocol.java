@@ -0,0 +1,430 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginInfo;
+import dev.al3mid3x.discovery.PluginRegistry;
+import dev.al3mid3x.security.EncryptionUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * The framed sync protocol shared by every {@link ServerEngine}.
+ * <p>
+ * Every message is a frame: its type byte, the {@code int} length of its body, the body, and the CRC-32 of the
+ * body as an {@code int}. A connection starts with the client's {@link #HELLO} (protocol version, auth token, the
+ * compression it asks for and the server groups it belongs to), answered with the backend's {@link #HELLO} (its
+ * version, the compression it accepted and, for {@link #COMPRESSION_SOLID}, the id of its current dictionary) or an
+ * {@link #ERROR} and the connection closing. The groups are an {@code int} count then each name, none meaning every
+ * plugin. The client then sends any number of requests, each answered before the next one is read:
+ * <ul>
+ *     <li>{@link #MANIFEST}, with the registry epoch and generation the client synced last ({@code long}s, 0 for
+ *     none). The answer is the manifest of the current generation, only holding the plugins served to the client's
+ *     groups: the epoch and generation, then either
+ *     {@link #FULL_MANIFEST} and every plugin, or {@link #MANIFEST_DELTA}, the plugins that changed since the
+ *     client's generation and the names of the removed ones ({@code int} count, then per plugin its name, encrypted
+ *     main class, hash, size and revision, and for a delta an {@code int} count of removed names).</li>
+ *     <li>{@link #FETCH}, with the plugins to send ({@code int} count, then per plugin its name, hash, the chunk to
+ *     resume from, the hash of the build the client already has, and the id of the dictionary it has, both empty
+ *     for none). Each of them is answered with a {@link #PAYLOAD} frame (name, payload length, first chunk, and
+ *     {@link #FULL_PAYLOAD}, {@link #PATCH_PAYLOAD} for a {@link JarPatch} from the client's build or
+ *     {@link #SOLID_PAYLOAD} for a {@link SolidCodec} stream with the client's dictionary) followed by {@link #DATA}
+ *     frames: the payload header, then one frame per sealed chunk from the first chunk on. A plugin whose build the
+ *     backend doesn't serve anymore is answered with {@link #MISSING}, and the client asks for the manifest changes
+ *     since its generation once the rest is sent.
+ *     While the client waits for a transfer slot, the answer is preceded by {@link #QUEUED} notices (queue position
+ *     and expected wait in milliseconds); a backend with a full queue sends {@link #BUSY} and the time after which
+ *     to try again instead, and closes the connection.</li>
+ *     <li>{@link #DICTIONARY}, answered with the id of the backend's current dictionary and its content.</li>
+ *     <li>{@link #PING}, answered with a {@link #PONG} echoing its body.</li>
+ *     <li>{@link #REPLICATE}, sent by a {@link ReplicaFollower}, answered with the whole current generation: the
+ *     epoch and generation, then an {@code int} count and per plugin its name, encrypted main class, hash, size,
+ *     revision and groups ({@code int} count, then each name).</li>
+ * </ul>
+ * A backend that has no generation to serve yet, like a follower that didn't replicate its primary once, answers
+ * the client's {@link #HELLO} with an {@link #ERROR}, so the client turns to another backend.
+ */
+final class SyncProtocol {
+
+    static final int VERSION = 5;
+
+    static final byte HELLO = 1;
+    static final byte MANIFEST = 2;
+    static final byte FETCH = 3;
+    static final byte PAYLOAD = 4;
+    static final byte DATA = 5;
+    static final byte MISSING = 6;
+    static final byte QUEUED = 7;
+    static final byte BUSY = 8;
+    static final byte PING = 9;
+    static final byte PONG = 10;
+    static final byte ERROR = 11;
+    static final byte DICTIONARY = 12;
+    static final byte REPLICATE = 13;
+
+    static final byte COMPRESSION_NONE = 0;
+    static final byte COMPRESSION_SOLID = 1;
+
+    static final byte FULL_MANIFEST = 0;
+    static final byte MANIFEST_DELTA = 1;
+
+    static final byte FULL_PAYLOAD = 0;
+    static final byte PATCH_PAYLOAD = 1;
+    static final byte SOLID_PAYLOAD = 2;
+
+    /** Type, length and checksum around every frame body. */
+    static final int FRAME_OVERHEAD = 1 + 4 + 4;
+    /** Most server groups a client may declare. */
+    static final int MAX_GROUPS = 64;
+    /** Longest request body a client may send. */
+    static final int MAX_REQUEST_LENGTH = 1024 * 1024;
+    /** Longest answer a follower accepts from its primary, large registries included. */
+    static final int MAX_ANSWER_LENGTH = 64 * 1024 * 1024;
+    /** Interval of the {@link #QUEUED} notices sent to a waiting client. */
+    static final long QUEUE_UPDATE_MILLIS = 5000;
+
+    private SyncProtocol() {
+    }
+
+    /**
+     * Writes the body of a frame.
+     */
+    interface Body {
+        void writeTo(DataOutput out) throws Exception;
+    }
+
+    /**
+     * @return The complete frame, ready to be written.
+     */
+    static byte[] frame(final byte type, final Body body) throws Exception {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        body.writeTo(new DataOutputStream(content));
+        final byte[] bytes = content.toByteArray();
+
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_OVERHEAD + bytes.length);
+        frame.put(type).putInt(bytes.length).put(bytes).putInt(checksum(bytes, 0, bytes.length));
+        return frame.array();
+    }
+
+    static byte[] frame(final byte type, final byte[] body) throws Exception {
+        return frame(type, out -> out.write(body));
+    }
+
+    static int checksum(final byte[] bytes, final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return Whether the backend has a generation to serve, which it always has once it published its plugins.
+     */
+    static boolean isReady(final PluginRegistry registry) {
+        return registry.current().generation() > 0;
+    }
+
+    static byte[] notReadyFrame() throws Exception {
+        return errorFrame("The backend has no plugins to serve yet");
+    }
+
+    /**
+     * Reads a frame sent by the client, blocking until it's complete.
+     *
+     * @throws IOException If the frame is too long or its checksum doesn't match.
+     */
+    static Frame readFrame(final DataInputStream in) throws IOException {
+        return readFrame(in, MAX_REQUEST_LENGTH);
+    }
+
+    /**
+     * Reads a frame of at most the provided length, blocking until it's complete.
+     *
+     * @throws IOException If the frame is too long or its checksum doesn't match.
+     */
+    static Frame readFrame(final DataInputStream in, final int maxLength) throws IOException {
+        final byte type = in.readByte();
+        final int length = in.readInt();
+        if (length < 0 || length > maxLength) throw new IOException("Frame of " + length + " bytes is too long");
+        final byte[] body = new byte[length];
+        in.readFully(body);
+        return verify(type, body, in.readInt());
+    }
+
+    /**
+     * Takes a frame sent by the client off the provided buffer, if it holds a complete one.
+     *
+     * @return The frame, or {@code null} if more bytes are needed, in which case the buffer is left untouched.
+     * @throws IOException If the frame is too long or its checksum doesn't match.
+     */
+    static Frame pollFrame(final ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < FRAME_OVERHEAD) return null;
+        final int length = buffer.getInt(buffer.position() + 1);
+        if (length < 0 || length > MAX_REQUEST_LENGTH) throw new IOException("Frame of " + length + " bytes is too long");
+        if (buffer.remaining() < FRAME_OVERHEAD + length) return null;
+
+        final byte type = buffer.get();
+        buffer.getInt();
+        final byte[] body = new byte[length];
+        buffer.get(body);
+        return verify(type, body, buffer.getInt());
+    }
+
+    private static Frame verify(final byte type, final byte[] body, final int checksum) throws IOException {
+        if (checksum(body, 0, body.length) != checksum) throw new IOException("Frame checksum mismatch");
+        return new Frame(type, body);
+    }
+
+    /**
+     * A frame received from the client.
+     */
+    static final class Frame {
+        final byte type;
+        final byte[] body;
+
+        private Frame(byte type, byte[] body) {
+            this.type = type;
+            this.body = body;
+        }
+
+        DataInputStream body() {
+            return new DataInputStream(new ByteArrayInputStream(body));
+        }
+    }
+
+    /**
+     * Reads the groups closing the client's {@link #HELLO}.
+     *
+     * @return The lowercase group names, empty for a client that wants every plugin.
+     */
+    static Set<String> readGroups(final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > MAX_GROUPS) throw new IOException("Client declared " + count + " groups, at most " + MAX_GROUPS + " are allowed");
+        final Set<String> groups = new TreeSet<>();
+        for (int i = 0; i < count; i++) {
+            groups.add(in.readUTF().toLowerCase());
+        }
+        return Collections.unmodifiableSet(groups);
+    }
+
+    /**
+     * A plugin requested with {@link #FETCH}.
+     */
+    static final class FetchRequest {
+        final String name;
+        final String hash;
+        final long resumeChunk;
+        final String baseHash;
+        final String dictionaryId;
+
+        private FetchRequest(String name, String hash, long resumeChunk, String baseHash, String dictionaryId) {
+            this.name = name;
+            this.hash = hash;
+            this.resumeChunk = resumeChunk;
+            this.baseHash = baseHash;
+            this.dictionaryId = dictionaryId;
+        }
+    }
+
+    static List<FetchRequest> readFetch(final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final List<FetchRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String name = in.readUTF();
+            final String hash = in.readUTF();
+            final long resumeChunk = in.readLong();
+            final String baseHash = in.readUTF();
+            requests.add(new FetchRequest(name, hash, resumeChunk, baseHash, in.readUTF()));
+        }
+        return requests;
+    }
+
+    /**
+     * @param snapshot The view of the client's groups, so it can't fetch the plugins of other groups.
+     * @return The plugin in the provided snapshot matching the request, or {@code null} if that build isn't served anymore.
+     */
+    static PluginInfo resolve(final PluginRegistry.Snapshot snapshot, final FetchRequest request) {
+        final PluginInfo pluginInfo = snapshot.plugins().get(request.name.toLowerCase());
+        return pluginInfo != null && pluginInfo.hash().equals(request.hash) ? pluginInfo : null;
+    }
+
+    /**
+     * A transfer being resumed continues with the whole JAR, as the chunks the client kept are part of it.
+     *
+     * @param compression The compression negotiated by the connection.
+     * @return The patch from the client's build if there's one worth sending, otherwise the solid payload if the
+     * connection negotiated it and it's worth it, otherwise the whole JAR. The artifact is held for the transfer,
+     * which {@link Artifact#release() releases} it once sent.
+     */
+    static Artifact artifactFor(final ArtifactStore artifactStore, final PluginInfo pluginInfo,
+                                final FetchRequest request, final byte compression) throws Exception {
+        while (true) {
+            final Artifact artifact = unheldArtifactFor(artifactStore, pluginInfo, request, compression);
+            // A spooled build retired in the meantime is spooled again on the next attempt.
+            if (artifact.retain()) return artifact;
+        }
+    }
+
+    private static Artifact unheldArtifactFor(final ArtifactStore artifactStore, final PluginInfo pluginInfo,
+                                              final FetchRequest request, final byte compression) throws Exception {
+        if (request.resumeChunk == 0) {
+            final Artifact patch = artifactStore.getPatch(pluginInfo, request.baseHash);
+            if (patch != null) return patch;
+            if (compression == COMPRESSION_SOLID) {
+                final Artifact solid = artifactStore.getSolid(pluginInfo, request.dictionaryId);
+                if (solid != null) return solid;
+            }
+        }
+        return artifactStore.get(pluginInfo);
+    }
+
+    /**
+     * Chunks hold a fixed amount of plaintext, so the chunks a client kept still line up with a build that was
+     * encrypted again since, under another nonce prefix: the header it's sent with is all it needs to go on.
+     *
+     * @return The first chunk of the artifact to send for the provided request.
+     */
+    static int firstChunk(final Artifact artifact, final FetchRequest request) {
+        return request.resumeChunk > 0 && request.resumeChunk < artifact.chunkCount() ? (int) request.resumeChunk : 0;
+    }
+
+    static byte[] payloadFrame(final String pluginName, final Artifact artifact, final int firstChunk) throws Exception {
+        return frame(PAYLOAD, out -> {
+            out.writeUTF(pluginName);
+            out.writeLong(artifact.length());
+            out.writeLong(firstChunk);
+            out.writeByte(payloadKindOf(artifact));
+        });
+    }
+
+    private static byte payloadKindOf(final Artifact artifact) {
+        switch (artifact.encoding()) {
+            case PATCH:
+                return PATCH_PAYLOAD;
+            case SOLID:
+                return SOLID_PAYLOAD;
+            default:
+                return FULL_PAYLOAD;
+        }
+    }
+
+    static byte[] missingFrame(final String pluginName) throws Exception {
+        return frame(MISSING, out -> out.writeUTF(pluginName));
+    }
+
+    /**
+     * @return The compression to use with a client asking for the provided one.
+     */
+    static byte negotiateCompression(final byte requested, final ArtifactStore artifactStore) {
+        return requested == COMPRESSION_SOLID && artifactStore.dictionary() != null ? COMPRESSION_SOLID : COMPRESSION_NONE;
+    }
+
+    static byte[] helloFrame(final byte compression, final ArtifactStore artifactStore) throws Exception {
+        return frame(HELLO, out -> {
+            out.writeInt(VERSION);
+            out.writeByte(compression);
+            out.writeUTF(compression == COMPRESSION_SOLID ? artifactStore.dictionary().current().id : "");
+        });
+    }
+
+    static byte[] dictionaryFrame(final ArtifactStore artifactStore) throws Exception {
+        final CompressionDictionary.Dictionary dictionary = artifactStore.dictionary() == null ? null : artifactStore.dictionary().current();
+        return frame(DICTIONARY, out -> {
+            out.writeUTF(dictionary == null ? "" : dictionary.id);
+            if (dictionary != null) out.write(dictionary.bytes);
+        });
+    }
+
+    static byte[] errorFrame(final String message) throws Exception {
+        return frame(ERROR, out -> out.writeUTF(message));
+    }
+
+    static byte[] queuedFrame(final int position, final long waitMillis) throws Exception {
+        return frame(QUEUED, out -> {
+            out.writeInt(position);
+            out.writeInt((int) Math.min(Integer.MAX_VALUE, waitMillis));
+        });
+    }
+
+    static byte[] busyFrame(final long retryAfterMillis) throws Exception {
+        return frame(BUSY, out -> out.writeInt((int) Math.min(Integer.MAX_VALUE, retryAfterMillis)));
+    }
+
+    /**
+     * @return The snapshot the client synced last, if the registry still knows it.
+     */
+    static PluginRegistry.Snapshot baseOf(final PluginRegistry registry, final long epoch, final long generation) {
+        return epoch == registry.epoch() && generation > 0 ? registry.snapshot(generation) : null;
+    }
+
+    /**
+     * Writes the provided snapshot, as the changes since the client's snapshot if there is one.
+     */
+    static void writeManifest(final DataOutput out,
+                              final long epoch,
+                              final PluginRegistry.Snapshot snapshot,
+                              final PluginRegistry.Snapshot base,
+                              final EncryptionUtil encryptionUtil) throws Exception {
+        out.writeLong(epoch);
+        out.writeLong(snapshot.generation());
+        if (base == null) {
+            out.writeByte(FULL_MANIFEST);
+            writeEntries(out, snapshot.values(), encryptionUtil);
+            return;
+        }
+
+        out.writeByte(MANIFEST_DELTA);
+        writeEntries(out, snapshot.changedSince(base), encryptionUtil);
+        final List<String> removed = snapshot.removedSince(base);
+        out.writeInt(removed.size());
+        for (String pluginName : removed) {
+            out.writeUTF(pluginName);
+        }
+    }
+
+    /**
+     * Writes the whole provided snapshot for a {@link ReplicaFollower}, groups included.
+     */
+    static void writeReplica(final DataOutput out,
+                             final long epoch,
+                             final PluginRegistry.Snapshot snapshot,
+                             final EncryptionUtil encryptionUtil) throws Exception {
+        out.writeLong(epoch);
+        out.writeLong(snapshot.generation());
+        out.writeInt(snapshot.size());
+        for (PluginInfo pluginInfo : snapshot.values()) {
+            out.writeUTF(pluginInfo.name());
+            out.writeUTF(encryptionUtil.encrypt(pluginInfo.mainClass()));
+            out.writeUTF(pluginInfo.hash());
+            out.writeLong(pluginInfo.size());
+            out.writeLong(pluginInfo.revision());
+            out.writeInt(pluginInfo.groups().size());
+            for (String group : pluginInfo.groups()) {
+                out.writeUTF(group);
+            }
+        }
+    }
+
+    private static void writeEntries(final DataOutput out,
+                                     final Collection<PluginInfo> plugins,
+                                     final EncryptionUtil encryptionUtil) throws Exception {
+        out.writeInt(plugins.size());
+        for (PluginInfo pluginInfo : plugins) {
+            out.writeUTF(pluginInfo.name());
+            out.writeUTF(encryptionUtil.encrypt(pluginInfo.mainClass()));
+            out.writeUTF(pluginInfo.hash());
+            out.writeLong(pluginInfo.size());
+            out.writeLong(pluginInfo.revision());
+        }
+    }
+}
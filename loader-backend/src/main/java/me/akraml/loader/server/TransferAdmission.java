@@ -0,0 +1,197 @@
+package me.akraml.loader.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admits payload transfers through a fixed number of slots, shared by every {@link ServerEngine}.
+ * <p>
+ * Connections waiting for a slot are queued per client address, and slots go round-robin over the addresses,
+ * so a client syncing over several connections doesn't push back everyone behind it. The queue is bounded:
+ * past {@code maxQueued} waiting connections, new ones are rejected and told when to come back. Waiting
+ * connections can ask for their position and an estimate of their wait, based on recent transfer times.
+ */
+public final class TransferAdmission {
+
+    private static final long INITIAL_TRANSFER_MILLIS = 1000;
+    private static final long MIN_RETRY_MILLIS = 1000;
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    /** Client address to its waiting connections, in the order the addresses get their next slot. */
+    private final LinkedHashMap<String, Deque<Ticket>> queues = new LinkedHashMap<>();
+    private int queued;
+    private int active;
+    private long averageTransferMillis = INITIAL_TRANSFER_MILLIS;
+    private long admitted;
+    private long rejected;
+
+    public TransferAdmission(final int maxConcurrent, final int maxQueued) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    /**
+     * Asks for a transfer slot. If one is free, {@code onAdmitted} runs right away on the calling thread,
+     * otherwise it runs on the thread releasing a slot once it's this connection's turn.
+     *
+     * @param clientAddress The client's address, without the port.
+     * @return The connection's ticket, which is {@link Ticket#isRejected() rejected} if the queue is full.
+     */
+    public Ticket request(final String clientAddress, final Runnable onAdmitted) {
+        final Ticket ticket = new Ticket(clientAddress, onAdmitted);
+        synchronized (this) {
+            if (active < maxConcurrent && queued == 0) {
+                active++;
+                admitted++;
+                ticket.state = TicketState.ADMITTED;
+                ticket.admittedAt = System.currentTimeMillis();
+            } else if (queued >= maxQueued) {
+                rejected++;
+                ticket.state = TicketState.REJECTED;
+                return ticket;
+            } else {
+                queues.computeIfAbsent(clientAddress, key -> new ArrayDeque<>()).add(ticket);
+                queued++;
+                return ticket;
+            }
+        }
+        onAdmitted.run();
+        return ticket;
+    }
+
+    /**
+     * @return The wait a client rejected right now should be asked to wait before trying again.
+     */
+    public synchronized long retryAfterMillis() {
+        return estimateWaitMillis(queued + 1);
+    }
+
+    public synchronized String stats() {
+        return "transfers: " + active + "/" + maxConcurrent + " active, " + queued + " queued, " + admitted + " admitted, "
+                + rejected + " rejected, ~" + averageTransferMillis + "ms each";
+    }
+
+    private long estimateWaitMillis(final int position) {
+        final long rounds = (position + maxConcurrent - 1) / maxConcurrent;
+        return Math.max(MIN_RETRY_MILLIS, rounds * averageTransferMillis);
+    }
+
+    private void release(final Ticket ticket) {
+        final List<Ticket> toAdmit = new ArrayList<>();
+        synchronized (this) {
+            if (ticket.state == TicketState.QUEUED) {
+                final Deque<Ticket> queue = queues.get(ticket.clientAddress);
+                if (queue != null && queue.remove(ticket)) {
+                    queued--;
+                    if (queue.isEmpty()) queues.remove(ticket.clientAddress);
+                }
+                ticket.state = TicketState.RELEASED;
+                return;
+            }
+            if (ticket.state != TicketState.ADMITTED) return;
+
+            ticket.state = TicketState.RELEASED;
+            active--;
+            final long transferMillis = System.currentTimeMillis() - ticket.admittedAt;
+            averageTransferMillis += (transferMillis - averageTransferMillis) / 8;
+
+            while (active < maxConcurrent && queued > 0) {
+                final Iterator<Map.Entry<String, Deque<Ticket>>> iterator = queues.entrySet().iterator();
+                final Map.Entry<String, Deque<Ticket>> head = iterator.next();
+                iterator.remove();
+                final Ticket next = head.getValue().poll();
+                // The address moves to the back of the rotation if it has more connections waiting.
+                if (!head.getValue().isEmpty()) queues.put(head.getKey(), head.getValue());
+
+                queued--;
+                active++;
+                admitted++;
+                next.state = TicketState.ADMITTED;
+                next.admittedAt = System.currentTimeMillis();
+                toAdmit.add(next);
+            }
+        }
+        for (Ticket next : toAdmit) {
+            next.onAdmitted.run();
+        }
+    }
+
+    private synchronized int positionOf(final Ticket ticket) {
+        if (ticket.state != TicketState.QUEUED) return 0;
+        final Deque<Ticket> ownQueue = queues.get(ticket.clientAddress);
+        int index = 0;
+        for (Ticket waiting : ownQueue) {
+            if (waiting == ticket) break;
+            index++;
+        }
+
+        // The ticket is admitted in the index-th round over the addresses, after every earlier round and after
+        // the addresses ahead of its own in this one.
+        int position = 1;
+        boolean aheadOfOwn = true;
+        for (Map.Entry<String, Deque<Ticket>> entry : queues.entrySet()) {
+            if (entry.getValue() == ownQueue) aheadOfOwn = false;
+            final int size = entry.getValue().size();
+            position += Math.min(size, index);
+            if (aheadOfOwn && size > index) position++;
+        }
+        return position;
+    }
+
+    private enum TicketState {
+        QUEUED,
+        ADMITTED,
+        REJECTED,
+        RELEASED
+    }
+
+    /**
+     * A connection's place in the admission, which has to be {@link #close() closed} once its transfer is done
+     * or the connection is gone, whether it was admitted or is still waiting.
+     */
+    public final class Ticket implements AutoCloseable {
+
+        private final String clientAddress;
+        private final Runnable onAdmitted;
+        private TicketState state = TicketState.QUEUED; // Guarded by the admission
+        private long admittedAt;
+
+        private Ticket(String clientAddress, Runnable onAdmitted) {
+            this.clientAddress = clientAddress;
+            this.onAdmitted = onAdmitted;
+        }
+
+        public boolean isRejected() {
+            synchronized (TransferAdmission.this) {
+                return state == TicketState.REJECTED;
+            }
+        }
+
+        /**
+         * @return The connection's position in the queue starting at 1, or 0 if it's not waiting anymore.
+         */
+        public int position() {
+            return positionOf(this);
+        }
+
+        /**
+         * @return The expected wait until this connection is admitted.
+         */
+        public long estimatedWaitMillis() {
+            synchronized (TransferAdmission.this) {
+                return estimateWaitMillis(positionOf(this));
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
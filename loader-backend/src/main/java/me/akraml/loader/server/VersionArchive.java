@@ -0,0 +1,96 @@
+package me.akraml.loader.server;
+
+import dev.al3mid3x.discovery.PluginInfo;
+import me.akraml.loader.LoaderBackend;
+import me.akraml.loader.utility.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Keeps copies of the last builds of every plugin, named by their hash, so the backend can still build a patch
+ * against a client's build after its JAR in {@code injected-plugins} was replaced.
+ * <p>
+ * Every build is archived when it's published, in a directory per plugin, and only the newest
+ * {@code maxVersions} builds of each plugin are kept.
+ */
+public final class VersionArchive {
+
+    private static final String EXTENSION = ".jar";
+
+    private final File directory;
+    private final int maxVersions;
+
+    public VersionArchive(final String directoryPath, final int maxVersions) throws IOException {
+        this.directory = new File(directoryPath);
+        this.maxVersions = maxVersions;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create archive directory " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Archives the builds that aren't archived yet, and drops the oldest builds of their plugins.
+     */
+    public void archive(final Collection<PluginInfo> plugins) {
+        for (PluginInfo pluginInfo : plugins) {
+            try {
+                archive(pluginInfo);
+            } catch (IOException e) {
+                LoaderBackend.getLogger().warning("Failed to archive " + pluginInfo.name() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void archive(final PluginInfo pluginInfo) throws IOException {
+        final File pluginDirectory = directoryOf(pluginInfo.name());
+        final File archived = new File(pluginDirectory, pluginInfo.hash() + EXTENSION);
+        if (archived.isFile()) return;
+        if (!pluginDirectory.exists() && !pluginDirectory.mkdirs()) {
+            throw new IOException("Could not create " + pluginDirectory.getName());
+        }
+
+        // The JAR may be replaced while it's copied, so the copy is only kept if it's still the published build.
+        final Path tempFile = Files.createTempFile(pluginDirectory.toPath(), pluginInfo.hash(), ".tmp");
+        try {
+            Files.copy(pluginInfo.file().toPath(), tempFile, StandardCopyOption.REPLACE_EXISTING);
+            if (!pluginInfo.hash().equals(FileUtils.sha256Hex(tempFile.toFile()))) return;
+            Files.move(tempFile, archived.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        prune(pluginDirectory);
+    }
+
+    /**
+     * @return The archived build of the provided plugin, or {@code null} if it isn't archived (anymore).
+     */
+    public File find(final String pluginName, final String hash) {
+        if (!hash.matches("[0-9a-f]{64}")) return null;
+        final File archived = new File(directoryOf(pluginName), hash + EXTENSION);
+        return archived.isFile() ? archived : null;
+    }
+
+    private void prune(final File pluginDirectory) {
+        final File[] builds = pluginDirectory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (builds == null || builds.length <= maxVersions) return;
+
+        // Archived in order, the newest builds have the latest modification times.
+        Arrays.sort(builds, Comparator.comparingLong(File::lastModified).reversed());
+        for (int i = maxVersions; i < builds.length; i++) {
+            if (!builds[i].delete()) {
+                LoaderBackend.getLogger().warning("Failed to delete archived build " + builds[i].getName());
+            }
+        }
+    }
+
+    private File directoryOf(final String pluginName) {
+        return new File(directory, pluginName.toLowerCase().replaceAll("[^a-z0-9._-]", "_"));
+    }
+}
@@ -3,6 +3,8 @@ package me.akraml.loader.utility;
 import lombok.NonNull;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -31,6 +33,55 @@ public final class FileUtils {
         return array;
     }
 
+    /**
+     * Computes the SHA-256 digest of the provided file, streaming it instead of loading it into memory.
+     *
+     * @param file File to hash.
+     * @return Lowercase hexadecimal SHA-256 digest of the file's content.
+     * @throws IOException If an I/O issue occurs while reading the file.
+     */
+    public static String sha256Hex(@NonNull final File file) throws IOException {
+        final MessageDigest digest = newSha256();
+        final byte[] buffer = new byte[8192];
+        try (final FileInputStream fileInputStream = new FileInputStream(file)) {
+            for (int read = fileInputStream.read(buffer); read != -1; read = fileInputStream.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the SHA-256 digest of the provided bytes array.
+     *
+     * @see #sha256Hex(File)
+     */
+    public static String sha256Hex(@NonNull final byte[] byteArray) {
+        return toHex(newSha256().digest(byteArray));
+    }
+
+    /**
+     * Creates a new SHA-256 message digest, which every JVM is required to support.
+     */
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * Converts the provided bytes array into a lowercase hexadecimal string.
+     */
+    public static String toHex(@NonNull final byte[] byteArray) {
+        final StringBuilder builder = new StringBuilder(byteArray.length * 2);
+        for (final byte b : byteArray) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
     /**
      * Writes the provided bytes array into a file.
      *
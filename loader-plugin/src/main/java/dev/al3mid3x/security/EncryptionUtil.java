@@ -2,6 +2,9 @@ package dev.al3mid3x.security;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.Key;
 import java.util.Base64;
 
@@ -10,6 +13,14 @@ public final class EncryptionUtil {
     private static final String ALGORITHM = "AES";
     private static final String TRANSFORMATION = "AES/ECB/PKCS5Padding";
 
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (Exception e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    });
+
     private final Key secretKey;
 
     public EncryptionUtil(String secret) {
@@ -20,29 +31,74 @@ public final class EncryptionUtil {
     }
 
     public String encrypt(String data) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        Cipher cipher = CIPHERS.get();
         cipher.init(Cipher.ENCRYPT_MODE, secretKey);
         byte[] encryptedBytes = cipher.doFinal(data.getBytes(java.nio.charset.StandardCharsets.UTF_8));
         return Base64.getEncoder().encodeToString(encryptedBytes);
     }
 
-    public byte[] encrypt(byte[] data) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        return cipher.doFinal(data);
-    }
-
     public String decryptString(String encryptedData) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        Cipher cipher = CIPHERS.get();
         cipher.init(Cipher.DECRYPT_MODE, secretKey);
         byte[] decodedBytes = Base64.getDecoder().decode(encryptedData);
         byte[] decryptedBytes = cipher.doFinal(decodedBytes);
         return new String(decryptedBytes, java.nio.charset.StandardCharsets.UTF_8);
     }
 
-    public byte[] decryptBytes(byte[] encryptedData) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        return cipher.doFinal(encryptedData);
+    Key key() {
+        return secretKey;
+    }
+
+    /**
+     * Wraps the provided stream so everything written to it is encrypted in authenticated chunks.
+     *
+     * @see ChunkedCipherOutputStream
+     */
+    public ChunkedCipherOutputStream encryptingStream(OutputStream out) throws IOException {
+        return new ChunkedCipherOutputStream(out, secretKey);
+    }
+
+    /**
+     * Wraps the provided stream so everything read from it is decrypted and verified chunk by chunk.
+     *
+     * @see ChunkedCipherInputStream
+     */
+    public ChunkedCipherInputStream decryptingStream(InputStream in) throws IOException {
+        return new ChunkedCipherInputStream(in, secretKey);
+    }
+
+    /**
+     * Wraps the provided stream, which continues a chunked payload at the provided chunk, so everything read from
+     * it is decrypted and verified chunk by chunk.
+     *
+     * @param header The first {@link ChunkedCipherOutputStream#HEADER_LENGTH} bytes of the payload.
+     */
+    public ChunkedCipherInputStream decryptingStream(InputStream in, byte[] header, int firstChunk) throws IOException {
+        return new ChunkedCipherInputStream(in, secretKey, header, firstChunk);
+    }
+
+    /**
+     * Encrypts everything from the provided stream into the other one in constant memory.
+     * The output stream is left open.
+     */
+    public void encrypt(InputStream in, OutputStream out) throws IOException {
+        ChunkedCipherOutputStream cipherOut = encryptingStream(out);
+        byte[] buffer = new byte[8192];
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            cipherOut.write(buffer, 0, read);
+        }
+        cipherOut.finish();
+    }
+
+    /**
+     * Decrypts one chunked payload from the provided stream into the other one in constant memory.
+     * Reading stops right after the payload's final chunk, and the output stream is left open.
+     */
+    public void decrypt(InputStream in, OutputStream out) throws IOException {
+        ChunkedCipherInputStream cipherIn = decryptingStream(in);
+        byte[] buffer = new byte[8192];
+        for (int read = cipherIn.read(buffer); read != -1; read = cipherIn.read(buffer)) {
+            out.write(buffer, 0, read);
+        }
     }
 }
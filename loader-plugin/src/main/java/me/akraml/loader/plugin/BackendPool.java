@@ -0,0 +1,256 @@
+package me.akraml.loader.plugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The backends this server syncs from: a primary and its followers, which all serve the same plugins. Every sync
+ * starts by connecting to all of them at once and ranking the ones that answered by round trip time, so it uses the
+ * fastest healthy backend and fails over to the next one when a backend goes down or turns it away mid-sync.
+ */
+final class BackendPool {
+
+    /** How long the probe waits for every backend to answer its ping. */
+    private static final long PROBE_TIMEOUT_MILLIS = 3000;
+
+    private final List<Backend> backends;
+    private final Logger logger;
+
+    BackendPool(List<Backend> backends, Logger logger) {
+        this.backends = Collections.unmodifiableList(new ArrayList<>(backends));
+        this.logger = logger;
+    }
+
+    /**
+     * @param specs          The backends, as {@code host:port}.
+     * @param defaultAddress The backend used when there are none, such as {@code loader-server.address}.
+     */
+    static BackendPool of(List<String> specs, String defaultAddress, int defaultPort, Logger logger) throws IOException {
+        final List<Backend> backends = new ArrayList<>();
+        for (String spec : specs) {
+            final String trimmed = spec.trim();
+            final int separator = trimmed.lastIndexOf(':');
+            try {
+                if (separator <= 0) throw new NumberFormatException();
+                backends.add(new Backend(trimmed.substring(0, separator), Integer.parseInt(trimmed.substring(separator + 1))));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid backend '" + spec + "' in config.yml, expected host:port");
+            }
+        }
+        if (backends.isEmpty()) backends.add(new Backend(defaultAddress, defaultPort));
+        return new BackendPool(backends, logger);
+    }
+
+    /**
+     * Connects to every backend at once and measures its round trip.
+     *
+     * @return The backends that answered, fastest first, along with the connection to the fastest one.
+     * @throws IOException If no backend answered.
+     */
+    Ranking probe(Connector connector) throws IOException {
+        if (backends.size() == 1) {
+            final SyncConnection connection = connector.open(backends.get(0));
+            try {
+                return new Ranking(Collections.singletonList(backends.get(0)), connection, connection.ping());
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        // Both guarded by answered: the probes that completed in time, and the connections still being probed.
+        final List<Probe> answered = new ArrayList<>();
+        final Set<SyncConnection> pending = new HashSet<>();
+        final Map<Backend, String> failures = new ConcurrentHashMap<>();
+        final boolean[] ranked = new boolean[1];
+        final CountDownLatch probed = new CountDownLatch(backends.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(backends.size());
+        try {
+            for (Backend backend : backends) {
+                executor.execute(() -> {
+                    try {
+                        final SyncConnection connection = connector.connect(backend);
+                        synchronized (answered) {
+                            // Too late to be ranked, the sync went on without this backend.
+                            if (ranked[0]) {
+                                connection.close();
+                                return;
+                            }
+                            pending.add(connection);
+                        }
+                        final Probe probe;
+                        try {
+                            connector.hello(connection);
+                            probe = new Probe(backend, connection, connection.ping());
+                        } catch (IOException e) {
+                            connection.close();
+                            throw e;
+                        } finally {
+                            synchronized (answered) {
+                                pending.remove(connection);
+                            }
+                        }
+                        synchronized (answered) {
+                            if (ranked[0]) {
+                                connection.close();
+                                return;
+                            }
+                            answered.add(probe);
+                        }
+                    } catch (IOException e) {
+                        failures.put(backend, e.getMessage());
+                    } finally {
+                        probed.countDown();
+                    }
+                });
+            }
+            try {
+                probed.await(PROBE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final List<Probe> probes;
+        synchronized (answered) {
+            ranked[0] = true;
+            probes = new ArrayList<>(answered);
+            // A backend that accepted the connection but didn't answer in time is stalled, closing its connection
+            // releases the probe's thread.
+            for (SyncConnection connection : pending) {
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        final List<String> unreachable = new ArrayList<>();
+        for (Backend backend : backends) {
+            boolean answeredProbe = false;
+            for (Probe probe : probes) answeredProbe |= probe.backend.equals(backend);
+            if (!answeredProbe) unreachable.add(backend + " (" + failures.getOrDefault(backend, "no answer") + ")");
+        }
+        if (probes.isEmpty()) throw new IOException("No backend answered: " + String.join(", ", unreachable));
+        probes.sort((a, b) -> Long.compare(a.roundTripNanos, b.roundTripNanos));
+
+        final List<Backend> ranking = new ArrayList<>();
+        final StringBuilder summary = new StringBuilder();
+        for (Probe probe : probes) {
+            ranking.add(probe.backend);
+            summary.append(summary.length() == 0 ? "" : ", ").append(String.format("%s %.1fms", probe.backend, probe.roundTripNanos / 1_000_000.0));
+            // Only the fastest backend is used, unless it fails.
+            if (probe != probes.get(0)) probe.connection.close();
+        }
+        if (!unreachable.isEmpty()) summary.append(", unreachable: ").append(String.join(", ", unreachable));
+        logger.info("Probed " + backends.size() + " backends, fastest first: " + summary + ".");
+        return new Ranking(ranking, probes.get(0).connection, probes.get(0).roundTripNanos);
+    }
+
+    /**
+     * Opens connections to the backends.
+     */
+    interface Connector {
+
+        /**
+         * Connects to the backend, without authenticating yet.
+         */
+        SyncConnection connect(Backend backend) throws IOException;
+
+        /**
+         * Authenticates a connection opened by {@link #connect}.
+         */
+        void hello(SyncConnection connection) throws IOException;
+
+        /**
+         * Connects to the backend and authenticates.
+         */
+        default SyncConnection open(Backend backend) throws IOException {
+            final SyncConnection connection = connect(backend);
+            try {
+                hello(connection);
+                return connection;
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+    }
+
+    static final class Backend {
+        final String address;
+        final int port;
+
+        Backend(String address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Backend)) return false;
+            final Backend other = (Backend) o;
+            return port == other.port && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode() * 31 + port;
+        }
+
+        @Override
+        public String toString() {
+            return address + ":" + port;
+        }
+    }
+
+    /**
+     * The backends that answered a probe, fastest first.
+     */
+    static final class Ranking {
+        final List<Backend> backends;
+        /** The open connection to the fastest backend. */
+        final SyncConnection connection;
+        final long roundTripNanos;
+
+        private Ranking(List<Backend> backends, SyncConnection connection, long roundTripNanos) {
+            this.backends = backends;
+            this.connection = connection;
+            this.roundTripNanos = roundTripNanos;
+        }
+
+        /**
+         * @return The fastest backend that isn't one of the provided ones, {@code null} if there are none left.
+         */
+        Backend next(Set<Backend> excluded) {
+            for (Backend backend : backends) {
+                if (!excluded.contains(backend)) return backend;
+            }
+            return null;
+        }
+    }
+
+    private static final class Probe {
+        private final Backend backend;
+        private final SyncConnection connection;
+        private final long roundTripNanos;
+
+        private Probe(Backend backend, SyncConnection connection, long roundTripNanos) {
+            this.backend = backend;
+            this.connection = connection;
+            this.roundTripNanos = roundTripNanos;
+        }
+    }
+}
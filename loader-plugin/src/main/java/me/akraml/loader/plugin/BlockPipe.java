@@ -0,0 +1,118 @@
+package me.akraml.loader.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects two stages of the {@link PayloadPipeline} running on different threads. Bytes written to the
+ * {@link #sink()} are handed over in blocks through a bounded queue to the {@link #source()}, so a fast stage
+ * blocks instead of buffering without limit. If either side {@link #fail fails}, the other one gets the
+ * failure instead of waiting forever.
+ */
+final class BlockPipe {
+
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> queue;
+    private volatile IOException failure;
+
+    BlockPipe(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    void fail(Throwable cause) {
+        if (failure == null) {
+            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    OutputStream sink() {
+        return new OutputStream() {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len > 0) put(Arrays.copyOfRange(b, off, off + len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                put(END);
+            }
+        };
+    }
+
+    InputStream source() {
+        return new InputStream() {
+            private byte[] current;
+            private int position;
+            private boolean ended;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                while (current == null || position == current.length) {
+                    if (ended) return -1;
+                    current = take();
+                    position = 0;
+                    if (current == END) {
+                        ended = true;
+                        return -1;
+                    }
+                }
+                final int read = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, read);
+                position += read;
+                return read;
+            }
+        };
+    }
+
+    private void put(byte[] block) throws IOException {
+        try {
+            while (!queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over a block");
+        }
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            byte[] block;
+            while ((block = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkFailure();
+            }
+            return block;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException cause = failure;
+        if (cause != null) throw new IOException("Pipeline stage failed: " + cause.getMessage(), cause);
+    }
+}
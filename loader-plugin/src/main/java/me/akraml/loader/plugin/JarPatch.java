@@ -0,0 +1,68 @@
+package me.akraml.loader.plugin;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Applies the patches the backend sends to turn a build of a plugin this server already has into a newer one: the
+ * length of the new JAR, then operations up to {@link #END}, either a {@link #COPY} of a range of the base JAR
+ * ({@code long} offset and {@code int} length) or a {@link #LITERAL} ({@code int} length and as many bytes).
+ */
+final class JarPatch {
+
+    private static final byte END = 0;
+    private static final byte COPY = 1;
+    private static final byte LITERAL = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private JarPatch() {
+    }
+
+    /**
+     * Writes the JAR rebuilt from the provided base build and patch to the provided stream.
+     *
+     * @throws IOException If the patch is malformed, or doesn't fit the base build.
+     */
+    static void apply(InputStream patch, File base, OutputStream out) throws IOException {
+        final DataInputStream in = new DataInputStream(patch);
+        final long targetLength = in.readLong();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        try (final RandomAccessFile baseFile = new RandomAccessFile(base, "r")) {
+            for (byte op = in.readByte(); op != END; op = in.readByte()) {
+                if (op == COPY) {
+                    final long offset = in.readLong();
+                    final int length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > baseFile.length()) throw new IOException("Patch copies past the end of the base build");
+                    baseFile.seek(offset);
+                    for (int remaining = length; remaining > 0; ) {
+                        final int read = Math.min(buffer.length, remaining);
+                        baseFile.readFully(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    written += length;
+                } else if (op == LITERAL) {
+                    final int length = in.readInt();
+                    if (length < 0) throw new IOException("Negative literal length in patch");
+                    for (int remaining = length; remaining > 0; ) {
+                        final int read = Math.min(buffer.length, remaining);
+                        in.readFully(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    written += length;
+                } else {
+                    throw new IOException("Unknown patch operation " + op);
+                }
+            }
+        }
+        if (written != targetLength) throw new IOException("Patch rebuilt " + written + " of " + targetLength + " bytes");
+        if (in.read() != -1) throw new IOException("Trailing bytes after the patch");
+    }
+}
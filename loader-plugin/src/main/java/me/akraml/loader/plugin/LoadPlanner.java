@@ -0,0 +1,147 @@
+package me.akraml.loader.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Orders the plugins of a sync by the {@code depend}, {@code softdepend} and {@code loadbefore} entries of
+ * their staged plugin.yml, so every plugin is loaded and enabled after the plugins it needs.
+ * <p>
+ * Plugins with a missing hard dependency, or that are part of a hard dependency cycle, are left out with an
+ * error instead of failing inside Bukkit, and so is everything that depends on them. Cycles that involve a
+ * {@code softdepend} or {@code loadbefore} are broken, like Bukkit does.
+ */
+final class LoadPlanner {
+
+    private LoadPlanner() {
+    }
+
+    /**
+     * @param pluginsToLoad The staged plugins to load, including new builds that replace a running one.
+     * @param isAvailable   Whether a plugin that isn't part of this sync is already on the server.
+     * @return The plugins that can be loaded, in an order that respects their dependencies.
+     */
+    static List<LoaderPlugin.PluginData> plan(List<LoaderPlugin.PluginData> pluginsToLoad,
+                                              Predicate<String> isAvailable,
+                                              Logger logger) {
+        final Map<String, LoaderPlugin.PluginData> plugins = new TreeMap<>();
+        for (LoaderPlugin.PluginData data : pluginsToLoad) {
+            plugins.put(data.name.toLowerCase(), data);
+        }
+
+        // An edge from a plugin to every plugin that has to be loaded after it
+        final Map<String, Set<String>> successors = new HashMap<>();
+        final Map<String, Integer> inDegrees = new HashMap<>();
+        final Map<String, Integer> hardInDegrees = new HashMap<>();
+        final Map<String, String> missingDependencies = new HashMap<>();
+        for (String name : plugins.keySet()) {
+            successors.put(name, new HashSet<>());
+            inDegrees.put(name, 0);
+            hardInDegrees.put(name, 0);
+        }
+        for (Map.Entry<String, LoaderPlugin.PluginData> entry : plugins.entrySet()) {
+            final String name = entry.getKey();
+            if (entry.getValue().description == null) continue;
+
+            // Each hard dependency is counted once, like it's released, even if it's listed twice.
+            final Set<String> hardDependencies = new HashSet<>();
+            for (String dependency : nullToEmpty(entry.getValue().description.getDepend())) {
+                final String dependencyName = dependency.toLowerCase();
+                if (plugins.containsKey(dependencyName)) {
+                    addEdge(successors, inDegrees, dependencyName, name);
+                    if (!dependencyName.equals(name) && hardDependencies.add(dependencyName)) hardInDegrees.merge(name, 1, Integer::sum);
+                } else if (!isAvailable.test(dependency)) {
+                    missingDependencies.put(name, dependency);
+                }
+            }
+            for (String dependency : nullToEmpty(entry.getValue().description.getSoftDepend())) {
+                final String dependencyName = dependency.toLowerCase();
+                if (plugins.containsKey(dependencyName)) addEdge(successors, inDegrees, dependencyName, name);
+            }
+            for (String dependent : nullToEmpty(entry.getValue().description.getLoadBefore())) {
+                final String dependentName = dependent.toLowerCase();
+                if (plugins.containsKey(dependentName)) addEdge(successors, inDegrees, name, dependentName);
+            }
+        }
+
+        // Kahn's algorithm, ready plugins are taken in name order so plans are reproducible.
+        final Set<String> processed = new HashSet<>();
+        final Set<String> skipped = new HashSet<>();
+        final PriorityQueue<String> ready = new PriorityQueue<>();
+        for (Map.Entry<String, Integer> entry : inDegrees.entrySet()) {
+            if (entry.getValue() == 0) ready.add(entry.getKey());
+        }
+        final List<LoaderPlugin.PluginData> plan = new ArrayList<>();
+        while (true) {
+            while (!ready.isEmpty()) {
+                final String name = ready.poll();
+                processed.add(name);
+                final String missingDependency = missingDependencies.get(name);
+                if (missingDependency != null) {
+                    logger.severe("Skipping " + plugins.get(name).name + ", its dependency " + missingDependency + " is missing.");
+                    skipped.add(name);
+                } else if (skipped.contains(name)) {
+                    logger.severe("Skipping " + plugins.get(name).name + ", one of its dependencies was skipped.");
+                } else {
+                    plan.add(plugins.get(name));
+                }
+
+                for (String successor : successors.get(name)) {
+                    if (isHardDependency(plugins.get(successor), name)) {
+                        hardInDegrees.merge(successor, -1, Integer::sum);
+                        if (skipped.contains(name)) skipped.add(successor);
+                    }
+                    if (inDegrees.merge(successor, -1, Integer::sum) == 0 && !processed.contains(successor)) {
+                        ready.add(successor);
+                    }
+                }
+            }
+
+            // Only cycles are left, release a plugin that is just waiting for soft dependencies.
+            String released = null;
+            for (String name : plugins.keySet()) {
+                if (!processed.contains(name) && hardInDegrees.get(name) == 0) {
+                    released = name;
+                    break;
+                }
+            }
+            if (released == null) break;
+            logger.warning("Breaking a soft dependency cycle by loading " + plugins.get(released).name + " first.");
+            ready.add(released);
+        }
+
+        if (processed.size() < plugins.size()) {
+            final List<String> blocked = new ArrayList<>();
+            for (String name : plugins.keySet()) {
+                if (!processed.contains(name)) blocked.add(plugins.get(name).name);
+            }
+            logger.severe("Skipping " + blocked + ", they are part of or depend on a dependency cycle.");
+        }
+        return plan;
+    }
+
+    private static void addEdge(Map<String, Set<String>> successors, Map<String, Integer> inDegrees, String from, String to) {
+        if (!from.equals(to) && successors.get(from).add(to)) inDegrees.merge(to, 1, Integer::sum);
+    }
+
+    private static boolean isHardDependency(LoaderPlugin.PluginData data, String dependencyName) {
+        if (data.description == null) return false;
+        for (String dependency : nullToEmpty(data.description.getDepend())) {
+            if (dependency.equalsIgnoreCase(dependencyName)) return true;
+        }
+        return false;
+    }
+
+    private static List<String> nullToEmpty(List<String> list) {
+        return list == null ? Collections.<String>emptyList() : list;
+    }
+}
@@ -3,85 +3,473 @@ package me.akraml.loader.plugin;
 import dev.al3mid3x.security.EncryptionUtil;
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public final class LoaderPlugin extends JavaPlugin {
 
+    /** Attempts at receiving a share of the plugins, each resuming where the previous one was interrupted. */
+    private static final int MAX_TRANSFER_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    /** Manifests asked for in one sync, when the backend keeps publishing generations while the plugins are sent. */
+    private static final int MAX_MANIFEST_ROUNDS = 3;
+
     private final List<Plugin> loadedPlugins = new CopyOnWriteArrayList<>();
-    private final List<File> tempPluginFiles = new CopyOnWriteArrayList<>();
+    private final Map<String, File> pluginFiles = new ConcurrentHashMap<>();
+    private final Map<String, String> loadedPluginHashes = new ConcurrentHashMap<>();
+    private final Map<String, Long> loadedPluginRevisions = new ConcurrentHashMap<>();
+    private PluginCache pluginCache;
+    private PluginStager pluginStager;
+    private NotificationSession notificationSession;
+    private final AtomicBoolean syncRunning = new AtomicBoolean();
+    /** The backend's manifest as of the last sync, so the next one only has to receive what changed since. */
+    private volatile SyncConnection.Manifest lastManifest;
+    private volatile boolean resyncRequested;
+    private volatile SyncConnection.Dictionary compressionDictionary = SyncConnection.Dictionary.NONE;
+    /** Set once this server's deflate turns out not to reproduce the backend's, which solid payloads rely on. */
+    private volatile boolean solidCompressionUnsupported;
 
     @Override
     public void onEnable() {
         saveDefaultConfig();
+        pluginCache = new PluginCache(cacheDirectory(),
+                getConfig().getLong("cache.max-size-mb", 512) * 1024 * 1024,
+                getLogger());
+        pluginStager = new PluginStager(getLogger(), Math.min(4, Runtime.getRuntime().availableProcessors()),
+                getConfig().getBoolean("sync.warmup.enabled", true));
         getCommand("loader").setExecutor(new SyncCommand(this));
+
+        if (getConfig().getBoolean("notifications.enabled", false)) {
+            notificationSession = new NotificationSession(this,
+                    getConfig().getString("loader-server.address"),
+                    getConfig().getInt("notifications.port", 5004),
+                    getConfig().getString("loader-server.auth-token"),
+                    getConfig().getInt("notifications.heartbeat-interval-seconds", 15),
+                    getConfig().getLong("notifications.max-jitter-ms", 5000));
+            notificationSession.start();
+        }
         getLogger().info("PluginLoader is enabled. Use /loader sync to synchronize plugins.");
     }
 
+    /**
+     * Bukkit can only load plugins from files, so the cache can be moved to a memory-backed filesystem
+     * (such as /dev/shm) to keep plaintext JARs off disk, or off a read-only or slow plugin directory.
+     */
+    private File cacheDirectory() {
+        final String directory = getConfig().getString("cache.directory", "");
+        if (directory == null || directory.isEmpty()) return new File(getDataFolder(), "cache");
+
+        final File file = new File(directory);
+        return file.isAbsolute() ? file : new File(getDataFolder(), directory);
+    }
+
+    /**
+     * Starts a sync, unless one is already running, in which case another one follows it.
+     */
     public void runSync() {
+        if (!syncRunning.compareAndSet(false, true)) {
+            resyncRequested = true;
+            getLogger().info("A sync is already running, another one will follow it.");
+            return;
+        }
         Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
             try {
                 getLogger().info("Connecting to backend to download and prepare plugin data...");
-                final List<PluginData> backendPlugins = downloadAllPluginData();
-                getLogger().info("Successfully downloaded data for " + backendPlugins.size() + " plugins.");
-
-                Bukkit.getScheduler().runTask(this, () -> startSmartSync(backendPlugins));
-
+                final List<PluginData> backendPlugins = pluginStager.stage(downloadAllPluginData());
+                getLogger().info("Successfully downloaded and staged data for " + backendPlugins.size() + " plugins.");
+
+                Bukkit.getScheduler().runTask(this, () -> {
+                    try {
+                        startSmartSync(backendPlugins);
+                    } catch (Exception e) {
+                        // The sync task never started, so it won't clear the running flag itself.
+                        getLogger().severe("An error occurred while planning the sync: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+                        onSyncFinished();
+                    }
+                });
+
+            } catch (SyncConnection.BackendBusyException e) {
+                // Spread the retries a little, every server queued behind the same backend got the same hint.
+                final long delayMillis = e.retryAfterMillis + ThreadLocalRandom.current().nextLong(e.retryAfterMillis / 4 + 1);
+                getLogger().warning("The backend is busy, syncing again in " + delayMillis + "ms.");
+                onSyncFinished();
+                requestSync(delayMillis);
             } catch (Exception e) {
                 getLogger().severe("An error occurred during the async download phase: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+                onSyncFinished();
             }
         });
     }
 
+    /**
+     * Starts a sync after the provided delay, used when the backend reports a change.
+     */
+    public void requestSync(long delayMillis) {
+        Bukkit.getScheduler().runTaskLaterAsynchronously(this, this::runSync, Math.max(1, delayMillis / 50));
+    }
+
+    void onSyncFinished() {
+        syncRunning.set(false);
+        if (resyncRequested) {
+            resyncRequested = false;
+            runSync();
+        }
+    }
+
     private List<PluginData> downloadAllPluginData() throws Exception {
         final String address = getConfig().getString("loader-server.address");
         final int port = getConfig().getInt("loader-server.port");
         final String authToken = getConfig().getString("loader-server.auth-token");
+        final int connections = Math.max(1, getConfig().getInt("loader-server.parallel-connections", 1));
+        final boolean solidCompression = getConfig().getBoolean("loader-server.solid-compression", false);
+        final Set<String> groups = configuredGroups();
 
         if (authToken == null || authToken.isEmpty() || authToken.equals("change-this-secret-token")) {
             throw new IOException("Auth token is not configured in config.yml!");
         }
 
-        final List<PluginData> downloadedData = new ArrayList<>();
-        try (final Socket socket = new Socket(address, port);
-             final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             final DataInputStream in = new DataInputStream(socket.getInputStream())) {
+        // The primary backend and its followers serve the same plugins, the sync starts on the fastest one.
+        final BackendPool backendPool = BackendPool.of(getConfig().getStringList("loader-server.backends"), address, port, getLogger());
+        final BackendPool.Connector connector = new BackendPool.Connector() {
+            @Override
+            public SyncConnection connect(BackendPool.Backend backend) throws IOException {
+                return SyncConnection.connect(backend, groups, getLogger());
+            }
+
+            @Override
+            public void hello(SyncConnection connection) throws IOException {
+                connection.hello(authToken, solidCompression && !solidCompressionUnsupported);
+            }
+        };
+        final BackendPool.Ranking ranking = backendPool.probe(connector);
 
-            out.writeUTF(authToken);
-            final int pluginCount = in.readInt();
-            final EncryptionUtil encryptionUtil = new EncryptionUtil(authToken);
+        final List<PluginData> downloadedData = new ArrayList<>();
+        final PayloadPipeline pipeline = new PayloadPipeline(new EncryptionUtil(authToken), pluginCache);
+        final ExecutorService extraConnections = connections > 1 ? Executors.newFixedThreadPool(connections - 1) : null;
+        SyncConnection connection = ranking.connection;
+        try {
+            final long roundTripNanos = ranking.roundTripNanos;
+
+            // Manifest phase: the backend announces every plugin served to this server's groups with its content hash
+            // and revision, or what changed since the generation of the previous sync. If it publishes another generation
+            // before the plugins are sent, the changes since this manifest are asked for, and only those are fetched.
+            SyncConnection.Manifest fullManifest = null;
+            for (int round = 1; ; round++) {
+                final SyncConnection.Manifest previousManifest = fullManifest == null ? lastManifest : fullManifest;
+                fullManifest = null;
+                final Set<BackendPool.Backend> failedBackends = new HashSet<>();
+                while (fullManifest == null) {
+                    try {
+                        fullManifest = connection.requestManifest(previousManifest);
+                    } catch (IOException e) {
+                        connection.close();
+                        connection = failover(ranking, failedBackends, connection.backend(), e, connector);
+                    }
+                }
+                final Map<String, SyncConnection.ManifestEntry> manifest = fullManifest.entries;
+                final SyncConnection manifestConnection = connection;
+
+                // Builds that are already running or cached here don't have to be downloaded, including those received
+                // in a previous round.
+                final Map<String, File> payloads = new HashMap<>();
+                final List<String> missing = new ArrayList<>();
+                int upToDate = 0;
+                for (Map.Entry<String, SyncConnection.ManifestEntry> entry : manifest.entrySet()) {
+                    final String hash = entry.getValue().hash;
+                    if (hash.equals(loadedPluginHashes.get(entry.getKey().toLowerCase()))) {
+                        upToDate++;
+                        continue;
+                    }
+                    final File cachedFile = pluginCache.get(hash);
+                    if (cachedFile != null) {
+                        payloads.put(entry.getKey(), cachedFile);
+                    } else {
+                        missing.add(entry.getKey());
+                    }
+                }
 
-            File tempDir = new File(getDataFolder(), "temp");
-            if (!tempDir.exists()) tempDir.mkdirs();
+                // Solid payloads are encoded with the backend's current dictionary, only fetched again when it changes.
+                if (!missing.isEmpty() && connection.solidCompression() && !connection.dictionaryId().equals(compressionDictionary.id)) {
+                    compressionDictionary = connection.requestDictionary();
+                    getLogger().info("Fetched the backend's compression dictionary (" + compressionDictionary.bytes.length + " bytes).");
+                }
 
-            for (int i = 0; i < pluginCount; i++) {
-                final String pluginName = in.readUTF();
-                in.readUTF(); // Discard main class
+                // The missing plugins are split over the connections, the extra ones only fetch their share.
+                final List<Set<String>> shares = splitBySize(missing, manifest, connections);
+                final List<Future<Map<String, File>>> extraDownloads = new ArrayList<>();
+                for (int i = 1; i < shares.size(); i++) {
+                    final Set<String> share = shares.get(i);
+                    extraDownloads.add(extraConnections.submit(() -> fetchShare(null, manifestConnection.backend(), ranking, connector, manifest, share, pipeline)));
+                }
 
-                final int encryptedSize = in.readInt();
-                final byte[] encryptedFileBytes = new byte[encryptedSize];
-                in.readFully(encryptedFileBytes, 0, encryptedSize);
+                // Every share is waited for, so none is still being received when the next round starts.
+                Exception failure = null;
+                try {
+                    if (!shares.isEmpty()) payloads.putAll(fetchShare(connection, connection.backend(), ranking, connector, manifest, shares.get(0), pipeline));
+                } catch (Exception e) {
+                    failure = e;
+                }
+                for (Future<Map<String, File>> extraDownload : extraDownloads) {
+                    try {
+                        payloads.putAll(await(extraDownload));
+                    } catch (Exception e) {
+                        if (failure == null || failure instanceof SyncConnection.StaleManifestException) failure = e;
+                    }
+                }
+                if (failure instanceof SyncConnection.StaleManifestException && round < MAX_MANIFEST_ROUNDS) {
+                    getLogger().info(failure.getMessage() + ", asking for the changes (round " + (round + 1) + "/" + MAX_MANIFEST_ROUNDS + ")...");
+                    continue;
+                }
+                if (failure != null) throw failure;
 
-                final byte[] fileBytes = encryptionUtil.decryptBytes(encryptedFileBytes);
-                downloadedData.add(new PluginData(pluginName, fileBytes));
+                for (Map.Entry<String, SyncConnection.ManifestEntry> entry : manifest.entrySet()) {
+                    // A null payload means the plugin is up to date and doesn't need to be reloaded.
+                    downloadedData.add(new PluginData(entry.getKey(), entry.getValue().hash, entry.getValue().revision, payloads.get(entry.getKey())));
+                }
+                getLogger().info(String.format("Backend %s sent %d of %d plugins of generation %d%s over %d connection(s) (%.1fms round trip), "
+                                + "%d taken from the local cache, %d already up to date.", manifestConnection.backend(), missing.size(), manifest.size(),
+                        fullManifest.generation, groups.isEmpty() ? "" : " for groups " + groups, Math.max(1, shares.size()), roundTripNanos / 1_000_000.0,
+                        manifest.size() - missing.size() - upToDate, upToDate));
+                break;
             }
+            final String solidStats = pipeline.solidStats();
+            if (solidStats != null) getLogger().info("Solid compression: " + solidStats + ".");
+
+            final Set<String> pinnedHashes = new HashSet<>();
+            for (SyncConnection.ManifestEntry entry : fullManifest.entries.values()) pinnedHashes.add(entry.hash);
+            pinnedHashes.addAll(loadedPluginHashes.values());
+            pluginCache.evict(pinnedHashes);
+            lastManifest = fullManifest;
+        } finally {
+            connection.close();
+            if (extraConnections != null) extraConnections.shutdownNow();
+            pipeline.shutdown();
         }
         return downloadedData;
     }
 
+    /**
+     * @return The lowercase server groups this server belongs to, empty if it receives every plugin.
+     */
+    private Set<String> configuredGroups() {
+        final Set<String> groups = new TreeSet<>();
+        for (String group : getConfig().getStringList("loader-server.groups")) {
+            if (!group.trim().isEmpty()) groups.add(group.trim().toLowerCase());
+        }
+        return Collections.unmodifiableSet(groups);
+    }
+
+    /**
+     * Splits the plugins into at most the provided number of shares of about the same total size.
+     */
+    private static List<Set<String>> splitBySize(List<String> pluginNames, Map<String, SyncConnection.ManifestEntry> manifest, int connections) {
+        final List<String> sorted = new ArrayList<>(pluginNames);
+        sorted.sort((a, b) -> Long.compare(manifest.get(b).size, manifest.get(a).size));
+
+        final int shareCount = Math.min(connections, sorted.size());
+        final List<Set<String>> shares = new ArrayList<>();
+        final long[] shareSizes = new long[shareCount];
+        for (int i = 0; i < shareCount; i++) shares.add(new HashSet<>());
+        for (String pluginName : sorted) {
+            int smallest = 0;
+            for (int i = 1; i < shareCount; i++) {
+                if (shareSizes[i] < shareSizes[smallest]) smallest = i;
+            }
+            shares.get(smallest).add(pluginName);
+            shareSizes[smallest] += manifest.get(pluginName).size;
+        }
+        return shares;
+    }
+
+    /**
+     * Receives a share of the missing plugins. If the backend goes down, it fails over to the next fastest one, and
+     * once every backend failed, it reconnects after a short delay and fetches what's left. Every interrupted payload
+     * resumes at its last complete chunk, on whichever backend.
+     *
+     * @param connection      The connection to start with, or {@code null} to open one to the manifest's backend.
+     * @param manifestBackend The backend the manifest came from, the others may not serve its builds yet.
+     */
+    private Map<String, File> fetchShare(SyncConnection connection, BackendPool.Backend manifestBackend, BackendPool.Ranking ranking,
+                                         BackendPool.Connector connector, Map<String, SyncConnection.ManifestEntry> manifest,
+                                         Set<String> share, PayloadPipeline pipeline) throws Exception {
+        final Map<String, File> payloads = new HashMap<>();
+        final SyncConnection initialConnection = connection;
+        final Set<BackendPool.Backend> failedBackends = new HashSet<>();
+        BackendPool.Backend backend = connection == null ? manifestBackend : connection.backend();
+        try {
+            for (int attempt = 1; ; ) {
+                try {
+                    if (connection == null) connection = connector.open(backend);
+                    receiveShare(connection, manifest, share, pipeline, payloads);
+                    return payloads;
+                } catch (SyncConnection.BackendBusyException | SyncConnection.StaleManifestException e) {
+                    // A follower may not have replicated the manifest's generation yet, the backend it came from has.
+                    if (e instanceof SyncConnection.StaleManifestException && backend.equals(manifestBackend)) throw e;
+                    failedBackends.add(backend);
+                    final BackendPool.Backend next = ranking.next(failedBackends);
+                    if (next == null) throw e;
+                    getLogger().warning("Backend " + backend + " can't send the plugins (" + e.getMessage() + "), failing over to " + next + ".");
+                    if (connection != null) connection.close();
+                    connection = null;
+                    backend = next;
+                } catch (IOException e) {
+                    if (connection != null) connection.close();
+                    connection = null;
+                    if (e instanceof SolidCodec.ReencodingMismatchException) {
+                        if (!solidCompressionUnsupported) {
+                            solidCompressionUnsupported = true;
+                            getLogger().warning(e.getMessage() + ", falling back to regular payloads until the next restart.");
+                        }
+                    } else {
+                        failedBackends.add(backend);
+                        final BackendPool.Backend next = ranking.next(failedBackends);
+                        if (next != null) {
+                            getLogger().warning("Lost backend " + backend + " (" + e.getClass().getSimpleName() + ": " + e.getMessage() + "), failing over to " + next + ".");
+                            backend = next;
+                            continue;
+                        }
+                    }
+                    if (attempt >= MAX_TRANSFER_ATTEMPTS) throw e;
+                    getLogger().warning("Transfer interrupted (" + e.getClass().getSimpleName() + ": " + e.getMessage() + "), resuming in " + attempt * RETRY_DELAY_MILLIS
+                            + "ms (attempt " + (attempt + 1) + "/" + MAX_TRANSFER_ATTEMPTS + ")...");
+                    Thread.sleep(attempt * RETRY_DELAY_MILLIS);
+                    attempt++;
+                    // Every backend gets another chance, the fastest first.
+                    failedBackends.clear();
+                    backend = ranking.next(failedBackends);
+                }
+            }
+        } finally {
+            if (connection != null && connection != initialConnection) connection.close();
+        }
+    }
+
+    /**
+     * Opens a connection to the fastest backend that didn't fail yet.
+     *
+     * @param backend The backend that just failed.
+     * @throws IOException The last failure, once every backend failed.
+     */
+    private SyncConnection failover(BackendPool.Ranking ranking, Set<BackendPool.Backend> failedBackends, BackendPool.Backend backend,
+                                    IOException failure, BackendPool.Connector connector) throws IOException {
+        failedBackends.add(backend);
+        for (BackendPool.Backend next = ranking.next(failedBackends); next != null; next = ranking.next(failedBackends)) {
+            getLogger().warning("Lost backend " + backend + " (" + failure.getClass().getSimpleName() + ": " + failure.getMessage() + "), failing over to " + next + ".");
+            try {
+                return connector.open(next);
+            } catch (IOException e) {
+                failedBackends.add(next);
+                backend = next;
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Fetches the plugins of the provided share that aren't in {@code payloads} yet, and adds them to it once
+     * they're stored, even if the transfer fails halfway.
+     */
+    private void receiveShare(SyncConnection connection, Map<String, SyncConnection.ManifestEntry> manifest, Set<String> share,
+                              PayloadPipeline pipeline, Map<String, File> payloads) throws Exception {
+        final List<SyncConnection.FetchRequest> requests = new ArrayList<>();
+        final Map<String, File> patchBases = new HashMap<>();
+        final SyncConnection.Dictionary dictionary = compressionDictionary;
+        for (String pluginName : share) {
+            if (payloads.containsKey(pluginName)) continue;
+            final String hash = manifest.get(pluginName).hash;
+            final long resumeChunk = pluginCache.resumeChunk(hash);
+            // An older build kept here lets the backend send a patch instead, unless the download is being resumed.
+            final String baseHash = resumeChunk == 0 ? patchBaseOf(pluginName) : null;
+            if (baseHash != null) patchBases.put(pluginName, pluginCache.get(baseHash));
+            requests.add(new SyncConnection.FetchRequest(pluginName, hash, resumeChunk, baseHash == null ? "" : baseHash, dictionary.id));
+        }
+        connection.fetch(requests);
+
+        final Map<String, Future<File>> pending = new LinkedHashMap<>();
+        final List<String> stale = new ArrayList<>();
+        Exception failure = null;
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                final SyncConnection.Payload payload = connection.nextPayload();
+                final SyncConnection.ManifestEntry entry = manifest.get(payload.name);
+                if (entry == null || !share.contains(payload.name)) throw new IOException("Backend sent a plugin that wasn't requested: " + payload.name);
+                if (payload.missing) {
+                    stale.add(payload.name);
+                    continue;
+                }
+                if (payload.firstChunk > 0) {
+                    getLogger().info("Resuming the download of " + payload.name + " at chunk " + payload.firstChunk + ".");
+                } else if (payload.patch) {
+                    getLogger().info(String.format("Patching %s from the build kept here (%d of %d bytes).", payload.name, payload.length, entry.size));
+                }
+
+                // Returns once the payload is received, decrypting and writing it overlaps with the next one.
+                pending.put(payload.name, pipeline.receive(connection, payload, entry.hash, patchBases.get(payload.name), dictionary));
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+
+        // Whatever was received completely is kept, so a retry only fetches the rest.
+        for (Map.Entry<String, Future<File>> entry : pending.entrySet()) {
+            try {
+                payloads.put(entry.getKey(), await(entry.getValue()));
+            } catch (Exception e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+        if (!stale.isEmpty()) throw new SyncConnection.StaleManifestException(stale);
+    }
+
+    /**
+     * @return The hash of a cached build of the provided plugin to patch from, the running one or else the one of
+     * the previous sync, or {@code null} if there is none.
+     */
+    private String patchBaseOf(String pluginName) {
+        final String loadedHash = loadedPluginHashes.get(pluginName.toLowerCase());
+        if (loadedHash != null && pluginCache.get(loadedHash) != null) return loadedHash;
+        final SyncConnection.Manifest previous = lastManifest;
+        final SyncConnection.ManifestEntry previousEntry = previous == null ? null : previous.entries.get(pluginName);
+        if (previousEntry != null && pluginCache.get(previousEntry.hash) != null) return previousEntry.hash;
+        return null;
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
     private void startSmartSync(List<PluginData> backendPlugins) {
         getLogger().info("Calculating differences for smart sync...");
 
@@ -96,42 +484,72 @@ public final class LoaderPlugin extends JavaPlugin {
         }
 
         List<PluginData> pluginsToLoad = new ArrayList<>();
+        final Set<String> pluginsToSwap = new HashSet<>();
         for (PluginData backendPlugin : backendPlugins) {
-            if (!isPluginLoaded(backendPlugin.name)) {
+            if (backendPlugin.jarFile == null) continue;
+            if (loadedPluginHashes.containsKey(backendPlugin.name.toLowerCase())) {
+                // Another build of a plugin managed here, it's replaced in place.
+                pluginsToSwap.add(backendPlugin.name.toLowerCase());
+                pluginsToLoad.add(backendPlugin);
+            } else if (!isPluginLoaded(backendPlugin.name)) {
                 pluginsToLoad.add(backendPlugin);
             }
         }
+        // Dependencies first, SyncTask keeps this order for swapping, loading and enabling, so a new build can
+        // depend on a plugin first loaded in this sync.
+        pluginsToLoad = LoadPlanner.plan(pluginsToLoad, this::isPluginLoaded, getLogger());
+        int swaps = 0;
+        for (PluginData data : pluginsToLoad) {
+            if (pluginsToSwap.contains(data.name.toLowerCase())) swaps++;
+        }
 
-        getLogger().info("Sync plan: Unload " + pluginsToUnload.size() + " plugins, Load " + pluginsToLoad.size() + " plugins.");
+        getLogger().info("Sync plan: Unload " + pluginsToUnload.size() + " plugins, Swap " + swaps + " plugins, Load " + (pluginsToLoad.size() - swaps) + " plugins.");
 
-        // Create and run the staggered task
-        new SyncTask(this, pluginsToUnload, pluginsToLoad).runTaskTimer(this, 1L, 40L); // Start after 1 tick, run every 2 seconds (40 ticks)
+        // Create and run the staggered task, it fits as many operations in every tick as its budget allows
+        final long budgetNanos = TimeUnit.MILLISECONDS.toNanos(getConfig().getLong("sync.tick-budget-ms", 10));
+        final boolean defineClasses = getConfig().getBoolean("sync.warmup.define-classes", false);
+        new SyncTask(this, pluginsToUnload, pluginsToSwap, pluginsToLoad, budgetNanos, defineClasses).runTaskTimer(this, 1L, 1L);
     }
 
     // These methods are now public to be called by SyncTask
-    public void loadPluginFromData(String pluginName, byte[] fileBytes) {
+    /**
+     * Loads a staged plugin without enabling it yet.
+     *
+     * @return The loaded plugin, or {@code null} if it failed to load.
+     */
+    public Plugin loadPluginFromData(PluginData data) {
         try {
-            getLogger().info("Loading plugin: " + pluginName);
-            File tempDir = new File(getDataFolder(), "temp");
-            if (!tempDir.exists()) tempDir.mkdirs();
-            File tempFile = new File(tempDir, pluginName + ".jar");
-
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                fos.write(fileBytes);
-            }
-
-            Plugin loadedPlugin = Bukkit.getPluginManager().loadPlugin(tempFile);
+            getLogger().info("Loading plugin: " + data.name);
+            final long start = System.nanoTime();
+            Plugin loadedPlugin = Bukkit.getPluginManager().loadPlugin(data.jarFile);
             if (loadedPlugin == null) throw new IllegalStateException("loadPlugin() returned null");
-
-            Bukkit.getPluginManager().enablePlugin(loadedPlugin);
-            this.loadedPlugins.add(loadedPlugin);
-            this.tempPluginFiles.add(tempFile);
-            getLogger().info("Successfully loaded and enabled: " + loadedPlugin.getName());
+            getLogger().info(String.format("Loaded %s in %.2fms", loadedPlugin.getName(), (System.nanoTime() - start) / 1_000_000.0));
+            return loadedPlugin;
         } catch (Exception e) {
-            getLogger().severe("Failed to load plugin from bytes: " + pluginName + ". Error: " + e.getMessage());
+            getLogger().severe("Failed to load plugin from file: " + data.name + ". Error: " + e.getMessage());
+            return null;
         }
     }
 
+    /**
+     * Enables a plugin returned by {@link #loadPluginFromData(PluginData)} and starts managing it.
+     *
+     * @param preloadedClasses How many of its classes were defined ahead of time, -1 if there was no warmup.
+     */
+    public void enableLoadedPlugin(PluginData data, Plugin loadedPlugin, int preloadedClasses) {
+        final long start = System.nanoTime();
+        Bukkit.getPluginManager().enablePlugin(loadedPlugin);
+        final long elapsed = System.nanoTime() - start;
+
+        this.loadedPlugins.add(loadedPlugin);
+        this.pluginFiles.put(loadedPlugin.getName().toLowerCase(), data.jarFile);
+        this.loadedPluginHashes.put(loadedPlugin.getName().toLowerCase(), data.hash);
+        this.loadedPluginRevisions.put(loadedPlugin.getName().toLowerCase(), data.revision);
+        getLogger().info(String.format("Successfully loaded and enabled: %s (revision %d, build %s), enabling took %.2fms%s",
+                loadedPlugin.getName(), data.revision, data.hash.substring(0, 12), elapsed / 1_000_000.0,
+                preloadedClasses < 0 ? " without warmup" : " with " + preloadedClasses + " classes preloaded"));
+    }
+
     public void unloadPlugin(Plugin plugin) {
         if (plugin != null) {
             getLogger().info("Unloading plugin: " + plugin.getName());
@@ -139,34 +557,83 @@ public final class LoaderPlugin extends JavaPlugin {
             if (plugin.isEnabled()) {
                 pluginManager.disablePlugin(plugin);
             }
+            forgetPlugin(pluginManager, plugin);
             this.loadedPlugins.remove(plugin);
+            this.loadedPluginHashes.remove(plugin.getName().toLowerCase());
+            this.loadedPluginRevisions.remove(plugin.getName().toLowerCase());
+            // The JAR stays in the plugin cache, where it's evicted once it's no longer needed.
+            this.pluginFiles.remove(plugin.getName().toLowerCase());
+        }
+    }
 
-            File fileToDelete = null;
-            for (File tempFile : tempPluginFiles) {
-                if (tempFile.getName().equalsIgnoreCase(plugin.getName() + ".jar")) {
-                    fileToDelete = tempFile;
-                    break;
-                }
-            }
-            if (fileToDelete != null) {
-                if (fileToDelete.delete()) {
-                    tempPluginFiles.remove(fileToDelete);
-                }
+    /**
+     * Replaces a running plugin with a staged build of it within a single operation: the old build is disabled
+     * and unloaded, and the new one is loaded and enabled right after. If the new build fails to load,
+     * the old one is loaded again.
+     */
+    public void swapPlugin(PluginData data) {
+        Plugin oldPlugin = null;
+        for (Plugin loadedPlugin : loadedPlugins) {
+            if (loadedPlugin.getName().equalsIgnoreCase(data.name)) oldPlugin = loadedPlugin;
+        }
+        final String oldKey = oldPlugin == null ? null : oldPlugin.getName().toLowerCase();
+        final String oldHash = oldKey == null ? null : loadedPluginHashes.get(oldKey);
+        final Long oldRevision = oldKey == null ? null : loadedPluginRevisions.get(oldKey);
+        final File oldJarFile = oldKey == null ? null : pluginFiles.get(oldKey);
+
+        final long start = System.nanoTime();
+        unloadPlugin(oldPlugin);
+        final Plugin newPlugin = loadPluginFromData(data);
+        if (newPlugin != null) {
+            enableLoadedPlugin(data, newPlugin, -1);
+            getLogger().info(String.format("Swapped %s to revision %d in %.2fms", data.name, data.revision, (System.nanoTime() - start) / 1_000_000.0));
+        } else if (oldJarFile != null) {
+            getLogger().warning("Restoring the previous build of " + data.name + "...");
+            final PluginData oldData = new PluginData(data.name, oldHash, oldRevision, oldJarFile);
+            final Plugin restoredPlugin = loadPluginFromData(oldData);
+            if (restoredPlugin != null) enableLoadedPlugin(oldData, restoredPlugin, -1);
+        }
+    }
+
+    /**
+     * Removes a disabled plugin from the plugin manager and closes its class loader, so another build of it can
+     * be loaded without a restart. Bukkit has no API for that, the fields are the ones of SimplePluginManager.
+     */
+    private void forgetPlugin(PluginManager pluginManager, Plugin plugin) {
+        try {
+            final Field pluginsField = pluginManager.getClass().getDeclaredField("plugins");
+            pluginsField.setAccessible(true);
+            ((List<?>) pluginsField.get(pluginManager)).remove(plugin);
+
+            final Field lookupNamesField = pluginManager.getClass().getDeclaredField("lookupNames");
+            lookupNamesField.setAccessible(true);
+            ((Map<?, ?>) lookupNamesField.get(pluginManager)).values().removeIf(value -> value == plugin);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            getLogger().warning("Couldn't remove " + plugin.getName() + " from the plugin manager, it can only be loaded again after a restart: " + e);
+        }
+
+        final ClassLoader classLoader = plugin.getClass().getClassLoader();
+        if (classLoader instanceof Closeable) {
+            try {
+                ((Closeable) classLoader).close();
+            } catch (IOException e) {
+                getLogger().warning("Failed to close the class loader of " + plugin.getName() + ": " + e.getMessage());
             }
         }
     }
 
     @Override
     public void onDisable() {
+        if (notificationSession != null) notificationSession.stop();
         final PluginManager pluginManager = Bukkit.getPluginManager();
         for (Plugin p : this.loadedPlugins) {
             if (p != null && p.isEnabled()) pluginManager.disablePlugin(p);
         }
         this.loadedPlugins.clear();
-        for (File tempFile : this.tempPluginFiles) {
-            if (tempFile != null && tempFile.exists()) tempFile.delete();
-        }
-        this.tempPluginFiles.clear();
+        this.loadedPluginHashes.clear();
+        this.loadedPluginRevisions.clear();
+        this.pluginFiles.clear(); // Kept in the plugin cache for the next start
+        if (pluginStager != null) pluginStager.shutdown();
         getLogger().info("PluginLoader disabled and all managed plugins unloaded.");
     }
 
@@ -179,11 +646,34 @@ public final class LoaderPlugin extends JavaPlugin {
 
     public static class PluginData {
         public final String name;
-        public final byte[] fileBytes;
+        public final String hash;
+        public final long revision;
+        public final File jarFile;
+        /** The parsed plugin.yml, set once the JAR is staged. */
+        public final PluginDescriptionFile description;
+        /** The classes in the JAR, set once the JAR is staged with warmup enabled. */
+        public final List<String> classNames;
+
+        PluginData(String name, String hash, long revision, File jarFile) {
+            this(name, hash, revision, jarFile, null, null);
+        }
 
-        PluginData(String name, byte[] fileBytes) {
+        private PluginData(String name, String hash, long revision, File jarFile,
+                           PluginDescriptionFile description, List<String> classNames) {
             this.name = name;
-            this.fileBytes = fileBytes;
+            this.hash = hash;
+            this.revision = revision;
+            this.jarFile = jarFile;
+            this.description = description;
+            this.classNames = classNames;
+        }
+
+        PluginData staged(PluginDescriptionFile description, List<String> classNames) {
+            return new PluginData(name, hash, revision, jarFile, description, classNames);
+        }
+
+        PluginData withoutJar() {
+            return new PluginData(name, hash, revision, null, null, null);
         }
     }
 }
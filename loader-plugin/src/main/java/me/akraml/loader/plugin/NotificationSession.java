@@ -0,0 +1,128 @@
+package me.akraml.loader.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a long-lived session with the backend's notification hub and starts a sync whenever the backend
+ * reports a new registry generation. Syncs start after a random delay, so a whole network of servers
+ * doesn't hit the backend at the same moment. A lost session is reopened with an exponential backoff, and
+ * a sync follows if the generation changed in the meantime, or the backend restarted, as its generations
+ * start over with a new epoch.
+ */
+public final class NotificationSession implements Runnable {
+
+    private static final byte PING = 1;
+    private static final byte PONG = 2;
+    private static final byte GENERATION = 3;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final LoaderPlugin plugin;
+    private final Logger logger;
+    private final String address;
+    private final int port;
+    private final String authToken;
+    private final int heartbeatSeconds;
+    private final long maxJitterMillis;
+
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private long knownEpoch;
+    private long knownGeneration = -1;
+
+    public NotificationSession(LoaderPlugin plugin, String address, int port, String authToken,
+                               int heartbeatSeconds, long maxJitterMillis) {
+        this.plugin = plugin;
+        this.logger = plugin.getLogger();
+        this.address = address;
+        this.port = port;
+        this.authToken = authToken;
+        this.heartbeatSeconds = heartbeatSeconds;
+        this.maxJitterMillis = maxJitterMillis;
+    }
+
+    public void start() {
+        final Thread thread = new Thread(this, "PluginLoader-Notifications");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        final Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long reconnectDelay = 1000;
+        while (running) {
+            try (final Socket socket = new Socket()) {
+                this.socket = socket;
+                socket.connect(new InetSocketAddress(address, port), 10_000);
+                socket.setTcpNoDelay(true);
+                // The hub pings every heartbeat, silence for three of them means the session is dead.
+                socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(heartbeatSeconds) * 3);
+
+                final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.writeUTF(authToken);
+                out.flush();
+
+                boolean opened = false;
+                while (running) {
+                    final byte type = in.readByte();
+                    if (type == PING) {
+                        out.writeByte(PONG);
+                        out.flush();
+                    } else if (type == GENERATION) {
+                        if (!opened) {
+                            logger.info("Notification session opened with the backend.");
+                            opened = true;
+                            reconnectDelay = 1000;
+                        }
+                        onGeneration(in.readLong(), in.readLong());
+                    } else {
+                        throw new IOException("Unexpected message " + type + " from the backend");
+                    }
+                }
+            } catch (IOException e) {
+                if (!running) return;
+                logger.warning("Notification session lost: " + e.getMessage() + ", reconnecting in " + reconnectDelay / 1000 + "s.");
+            }
+
+            try {
+                Thread.sleep(reconnectDelay + ThreadLocalRandom.current().nextLong(reconnectDelay / 2 + 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+            reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+    }
+
+    private void onGeneration(long epoch, long generation) {
+        final long previousEpoch = knownEpoch;
+        final long previous = knownGeneration;
+        knownEpoch = epoch;
+        knownGeneration = generation;
+        // The first generation of a run is only a baseline, syncing stays up to the operator until then.
+        if (previous == -1 || previousEpoch == epoch && previous == generation) return;
+
+        final long delay = maxJitterMillis <= 0 ? 0 : ThreadLocalRandom.current().nextLong(maxJitterMillis);
+        logger.info((previousEpoch == epoch ? "Backend registry changed to generation " : "Backend restarted at registry generation ")
+                + generation + ", syncing in " + delay + "ms.");
+        plugin.requestSync(delay);
+    }
+}
@@ -0,0 +1,186 @@
+package me.akraml.loader.plugin;
+
+import dev.al3mid3x.security.ChunkedCipherOutputStream;
+import dev.al3mid3x.security.EncryptionUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.Channels;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives encrypted plugin payloads in three overlapping stages: the connection's thread reads the encrypted
+ * bytes off the socket, a second thread decrypts and verifies them, and a third one writes the plaintext to disk
+ * while hashing it. The stages are connected by bounded {@link BlockPipe}s, so the next payload is already being
+ * received while the previous one is still being decrypted or written.
+ * <p>
+ * A payload resuming an interrupted download only carries the chunks past the part file's last complete one, which
+ * are appended to it. A failed download keeps its part file, unless its content turns out not to match its hash.
+ * <p>
+ * A {@link JarPatch} payload is applied to the base build while it's written, rebuilding the new JAR from the start
+ * of the part file. If it's interrupted, the part holds the beginning of the new JAR, which the next attempt resumes.
+ * The same goes for a {@link SolidCodec} payload, which is restored with the compression dictionary.
+ */
+final class PayloadPipeline {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int QUEUE_BLOCKS = 32;
+
+    private final EncryptionUtil encryptionUtil;
+    private final PluginCache pluginCache;
+    private final AtomicInteger solidPayloads = new AtomicInteger();
+    private final AtomicLong solidPayloadBytes = new AtomicLong();
+    private final AtomicLong solidJarBytes = new AtomicLong();
+    private final AtomicLong solidCpuNanos = new AtomicLong();
+    private final ExecutorService stages = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "PluginLoader-Pipeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    PayloadPipeline(EncryptionUtil encryptionUtil, PluginCache pluginCache) {
+        this.encryptionUtil = encryptionUtil;
+        this.pluginCache = pluginCache;
+    }
+
+    /**
+     * Reads the data frames of an announced payload from the connection, and hands them over to the
+     * decrypting and writing stages. Returns as soon as the payload is off the socket.
+     *
+     * @param patchBase  The build a patch payload applies to, or {@code null} if none was requested.
+     * @param dictionary The dictionary a solid payload was requested with.
+     * @return The stored JAR once the payload is decrypted, written and verified against its hash.
+     */
+    Future<File> receive(SyncConnection connection, SyncConnection.Payload payload, String hash,
+                         File patchBase, SyncConnection.Dictionary dictionary) throws IOException {
+        if (payload.patch && patchBase == null) throw new IOException("Backend sent a patch for " + payload.name + " that wasn't requested");
+        if (payload.solid && dictionary == null) throw new IOException("Backend sent a solid payload for " + payload.name + " that wasn't requested");
+        final byte[] frame = new byte[ChunkedCipherOutputStream.SEALED_CHUNK_STRIDE];
+        final int headerLength = connection.readData(frame);
+        if (headerLength != ChunkedCipherOutputStream.HEADER_LENGTH) throw new IOException("Payload header of " + headerLength + " bytes");
+        final byte[] header = Arrays.copyOf(frame, headerLength);
+        final int firstChunk = (int) payload.firstChunk;
+
+        final BlockPipe encrypted = new BlockPipe(QUEUE_BLOCKS);
+        final BlockPipe plain = new BlockPipe(QUEUE_BLOCKS);
+
+        stages.submit(() -> {
+            try (final InputStream in = encryptionUtil.decryptingStream(encrypted.source(), header, firstChunk)) {
+                final OutputStream sink = plain.sink();
+                final byte[] buffer = new byte[BLOCK_SIZE];
+                for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                    sink.write(buffer, 0, read);
+                }
+                sink.close();
+            } catch (Exception e) {
+                encrypted.fail(e);
+                plain.fail(e);
+            }
+        });
+        final File base = payload.patch ? patchBase : null;
+        final SyncConnection.Dictionary solidDictionary = payload.solid ? dictionary : null;
+        final Future<File> stored = stages.submit(() -> write(plain, encrypted, hash,
+                (long) firstChunk * ChunkedCipherOutputStream.CHUNK_SIZE, base, solidDictionary));
+        if (payload.solid) {
+            solidPayloads.incrementAndGet();
+            solidPayloadBytes.addAndGet(payload.length);
+        }
+
+        try {
+            final OutputStream sink = encrypted.sink();
+            long remaining = payload.length - ChunkedCipherOutputStream.HEADER_LENGTH
+                    - (long) firstChunk * ChunkedCipherOutputStream.SEALED_CHUNK_STRIDE;
+            while (remaining > 0) {
+                final int length = connection.readData(frame);
+                sink.write(frame, 0, length);
+                remaining -= length;
+            }
+            if (remaining < 0) throw new IOException("Payload is longer than announced");
+            sink.close();
+        } catch (IOException e) {
+            encrypted.fail(e);
+            plain.fail(e);
+            throw e;
+        }
+        return stored;
+    }
+
+    /**
+     * @return A summary of the solid payloads received, or {@code null} if there were none.
+     */
+    String solidStats() {
+        if (solidPayloads.get() == 0) return null;
+        return String.format("%d solid payloads, %d bytes received for %d bytes of JARs (%.1f%%), restored in %.1fms of CPU",
+                solidPayloads.get(), solidPayloadBytes.get(), solidJarBytes.get(),
+                100.0 * solidPayloadBytes.get() / Math.max(1, solidJarBytes.get()), solidCpuNanos.get() / 1_000_000.0);
+    }
+
+    void shutdown() {
+        stages.shutdownNow();
+    }
+
+    /**
+     * Appends the plaintext to the part file past the provided offset, or the JAR it patches the base build into or
+     * restores with the dictionary, and commits it.
+     */
+    private File write(BlockPipe plain, BlockPipe encrypted, String hash, long offset,
+                       File patchBase, SyncConnection.Dictionary dictionary) throws Exception {
+        final File partFile = pluginCache.partFile(hash);
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (final InputStream source = plain.source();
+             final RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+            // The part may hold an incomplete chunk past the offset, which is received again.
+            file.setLength(offset);
+            digestExisting(file, offset, digest);
+
+            final OutputStream out = new DigestOutputStream(new BufferedOutputStream(Channels.newOutputStream(file.getChannel())), digest);
+            if (patchBase != null) {
+                JarPatch.apply(source, patchBase, out);
+            } else if (dictionary != null) {
+                // Decoding time only, the thread is mostly waiting for the payload otherwise.
+                final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                final long cpuStart = threads.getCurrentThreadCpuTime();
+                SolidCodec.decode(source, dictionary.bytes, out);
+                solidCpuNanos.addAndGet(Math.max(0, threads.getCurrentThreadCpuTime() - cpuStart));
+                out.flush();
+                solidJarBytes.addAndGet(file.length());
+            } else {
+                final byte[] buffer = new byte[BLOCK_SIZE];
+                for (int read = source.read(buffer); read != -1; read = source.read(buffer)) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            out.flush();
+            file.getFD().sync(); // Durable before it's moved into the cache
+        } catch (Exception e) {
+            plain.fail(e);
+            encrypted.fail(e);
+            throw e;
+        }
+        return pluginCache.commit(hash, partFile, PluginCache.toHex(digest.digest()));
+    }
+
+    private static void digestExisting(RandomAccessFile file, long length, MessageDigest digest) throws IOException {
+        file.seek(0);
+        final byte[] buffer = new byte[BLOCK_SIZE];
+        for (long position = 0; position < length; ) {
+            final int read = file.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+            if (read == -1) throw new IOException("Part file is shorter than its chunks");
+            digest.update(buffer, 0, read);
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package me.akraml.loader.plugin;
+
+import dev.al3mid3x.security.ChunkedCipherOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed store of downloaded plugin JARs that survives restarts. Every JAR is named by the
+ * SHA-256 digest of its content, so the backend only has to send the builds that aren't stored here yet.
+ * <p>
+ * When the store grows past its size budget, the least recently used JARs are deleted first, except for the
+ * pinned ones (the builds that are running or that the backend currently serves).
+ * <p>
+ * A download in progress is kept in {@code <hash>.part}, so one interrupted by a dropped connection or a restart
+ * resumes at its last complete chunk.
+ */
+public final class PluginCache {
+
+    private static final String EXTENSION = ".jar";
+    private static final String PART_EXTENSION = ".part";
+
+    private final File directory;
+    private final long maxBytes;
+    private final Logger logger;
+
+    public PluginCache(File directory, long maxBytes, Logger logger) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.logger = logger;
+        if (!directory.exists()) directory.mkdirs();
+    }
+
+    /**
+     * @return The stored JAR with the provided content hash, or {@code null} if it isn't stored.
+     */
+    public synchronized File get(String hash) {
+        final File file = fileOf(hash);
+        if (!file.isFile()) return null;
+        file.setLastModified(System.currentTimeMillis()); // Marks it as recently used
+        return file;
+    }
+
+    /**
+     * @return The file the JAR with the provided hash is downloaded to, before it's {@link #commit committed}.
+     */
+    public File partFile(String hash) {
+        return new File(directory, hash + PART_EXTENSION);
+    }
+
+    /**
+     * @return The number of complete chunks an interrupted download of the provided hash already holds.
+     */
+    public long resumeChunk(String hash) {
+        return partFile(hash).length() / ChunkedCipherOutputStream.CHUNK_SIZE;
+    }
+
+    /**
+     * Moves a completely downloaded JAR into the store, if its content matches the hash it was announced with.
+     *
+     * @param hash       The hash the backend announced.
+     * @param partFile   The file the JAR was downloaded to.
+     * @param actualHash The hash of the downloaded content.
+     * @return The stored JAR.
+     */
+    public synchronized File commit(String hash, File partFile, String actualHash) throws IOException {
+        if (!hash.equals(actualHash)) {
+            partFile.delete();
+            throw new IOException("Downloaded plugin doesn't match its hash, expected " + hash + " but got " + actualHash);
+        }
+        final File file = fileOf(hash);
+        Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /**
+     * Deletes the least recently used JARs until the store fits its size budget again, and the interrupted
+     * downloads of builds that aren't pinned.
+     *
+     * @param pinned Hashes of the JARs that must be kept regardless.
+     */
+    public synchronized void evict(Collection<String> pinned) {
+        final File[] parts = directory.listFiles((dir, name) -> name.endsWith(PART_EXTENSION));
+        if (parts != null) {
+            for (File part : parts) {
+                if (!pinned.contains(hashOf(part, PART_EXTENSION))) part.delete();
+            }
+        }
+
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) return;
+
+        long totalBytes = 0;
+        final List<File> candidates = new ArrayList<>();
+        for (File file : files) {
+            totalBytes += file.length();
+            if (!pinned.contains(hashOf(file, EXTENSION))) candidates.add(file);
+        }
+        candidates.sort(Comparator.comparingLong(File::lastModified));
+
+        int evicted = 0;
+        for (File file : candidates) {
+            if (totalBytes <= maxBytes) break;
+            final long length = file.length();
+            if (file.delete()) {
+                totalBytes -= length;
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            logger.info("Evicted " + evicted + " plugins from the local cache, " + totalBytes + "/" + maxBytes + " bytes used.");
+        }
+    }
+
+    private File fileOf(String hash) {
+        return new File(directory, hash + EXTENSION);
+    }
+
+    static String toHex(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static String hashOf(File file, String extension) {
+        final String name = file.getName();
+        return name.substring(0, name.length() - extension.length());
+    }
+}
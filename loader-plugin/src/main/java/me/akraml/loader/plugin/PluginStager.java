@@ -0,0 +1,141 @@
+package me.akraml.loader.plugin;
+
+import org.bukkit.plugin.PluginDescriptionFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+/**
+ * Prepares downloaded plugins on async workers before the {@link SyncTask} is scheduled: every JAR is checked
+ * against its hash and its plugin.yml is parsed and validated, so the main thread only has to call
+ * {@code loadPlugin} and {@code enablePlugin} on files that are known to be good.
+ * <p>
+ * With warmup enabled, staging also reads and inflates every class in the JAR, which leaves it in the OS page
+ * cache, and remembers the class names so the {@link SyncTask} can define them between loading and enabling the
+ * plugin.
+ */
+public final class PluginStager {
+
+    private final Logger logger;
+    private final ExecutorService workers;
+    private final boolean warmup;
+
+    public PluginStager(Logger logger, int threads, boolean warmup) {
+        this.logger = logger;
+        this.warmup = warmup;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            final Thread thread = new Thread(runnable, "PluginLoader-Stager");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stages every plugin that has a JAR to load. Plugins that fail are logged and returned without a JAR,
+     * so whatever build of them is running keeps running.
+     *
+     * @return The plugins in the same order, the staged ones carrying their parsed description.
+     */
+    public List<LoaderPlugin.PluginData> stage(List<LoaderPlugin.PluginData> plugins) throws InterruptedException {
+        final List<Future<LoaderPlugin.PluginData>> staging = new ArrayList<>();
+        for (LoaderPlugin.PluginData data : plugins) {
+            staging.add(data.jarFile == null ? null : workers.submit(() -> stage(data)));
+        }
+
+        final List<LoaderPlugin.PluginData> staged = new ArrayList<>();
+        for (int i = 0; i < plugins.size(); i++) {
+            final LoaderPlugin.PluginData data = plugins.get(i);
+            final Future<LoaderPlugin.PluginData> future = staging.get(i);
+            if (future == null) {
+                staged.add(data);
+                continue;
+            }
+            try {
+                staged.add(future.get());
+            } catch (ExecutionException e) {
+                logger.severe("Failed to stage plugin " + data.name + ", it won't be loaded: " + e.getCause().getMessage());
+                staged.add(data.withoutJar());
+            }
+        }
+        return staged;
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private LoaderPlugin.PluginData stage(LoaderPlugin.PluginData data) throws Exception {
+        final String actualHash = sha256Hex(data.jarFile);
+        if (!actualHash.equals(data.hash)) {
+            data.jarFile.delete(); // A corrupted cache entry, the next sync downloads it again
+            throw new IOException("JAR doesn't match its hash, expected " + data.hash + " but got " + actualHash);
+        }
+
+        try (final JarFile jarFile = new JarFile(data.jarFile)) {
+            final ZipEntry pluginYml = jarFile.getEntry("plugin.yml");
+            if (pluginYml == null) throw new IOException("JAR has no plugin.yml");
+
+            final PluginDescriptionFile description;
+            try (final InputStream in = jarFile.getInputStream(pluginYml)) {
+                description = new PluginDescriptionFile(in);
+            }
+            if (!description.getName().equalsIgnoreCase(data.name)) {
+                throw new IOException("plugin.yml declares " + description.getName() + " instead of " + data.name);
+            }
+            if (jarFile.getEntry(description.getMain().replace('.', '/') + ".class") == null) {
+                throw new IOException("Main class " + description.getMain() + " is missing from the JAR");
+            }
+            return data.staged(description, warmup ? inflateClasses(jarFile) : null);
+        }
+    }
+
+    /**
+     * Reads every class entry of the JAR once.
+     *
+     * @return The names of the classes in the JAR.
+     */
+    private static List<String> inflateClasses(JarFile jarFile) throws IOException {
+        final List<String> classNames = new ArrayList<>();
+        final byte[] buffer = new byte[64 * 1024];
+        final Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            final JarEntry entry = entries.nextElement();
+            final String entryName = entry.getName();
+            if (!entryName.endsWith(".class") || entryName.startsWith("META-INF/") || entryName.endsWith("module-info.class")) {
+                continue;
+            }
+            try (final InputStream in = jarFile.getInputStream(entry)) {
+                while (in.read(buffer) != -1) {
+                    // Only inflating it matters
+                }
+            }
+            classNames.add(entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.'));
+        }
+        return classNames;
+    }
+
+    private static String sha256Hex(File file) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (final InputStream in = new FileInputStream(file)) {
+            final byte[] buffer = new byte[64 * 1024];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return PluginCache.toHex(digest.digest());
+    }
+}
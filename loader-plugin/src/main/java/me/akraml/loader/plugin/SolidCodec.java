@@ -0,0 +1,114 @@
+package me.akraml.loader.plugin;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Restores the JARs the backend re-encoded as a single deflate stream with its preset dictionary: the length of the
+ * JAR, then records up to {@link #END}, either a {@link #LITERAL} ({@code int} length and as many bytes of the JAR)
+ * or an {@link #INFLATED} entry (the deflate level, {@code int} length and CRC-32 of its stored data, then the
+ * {@code int} length of its content and the content), which is deflated again into its stored data.
+ */
+final class SolidCodec {
+
+    private static final byte END = 0;
+    private static final byte LITERAL = 1;
+    private static final byte INFLATED = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Largest entry content accepted, as it's held in memory while it's deflated again. */
+    private static final int MAX_ENTRY_SIZE = 256 * 1024 * 1024;
+
+    private SolidCodec() {
+    }
+
+    /**
+     * Writes the JAR restored from the provided solid stream to the provided stream.
+     *
+     * @throws ReencodingMismatchException If this server's deflate doesn't reproduce an entry like the backend's does.
+     * @throws IOException                 If the stream is malformed.
+     */
+    static void decode(InputStream solid, byte[] dictionary, OutputStream out) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        try {
+            if (dictionary.length > 0) inflater.setDictionary(dictionary);
+            final DataInputStream in = new DataInputStream(new InflaterInputStream(solid, inflater, BUFFER_SIZE));
+            final long jarLength = in.readLong();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long written = 0;
+            for (byte record = in.readByte(); record != END; record = in.readByte()) {
+                if (record == LITERAL) {
+                    final int length = in.readInt();
+                    if (length < 0) throw new IOException("Negative literal length in solid stream");
+                    for (int remaining = length; remaining > 0; ) {
+                        final int read = Math.min(buffer.length, remaining);
+                        in.readFully(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    written += length;
+                } else if (record == INFLATED) {
+                    written += deflateEntry(in, out);
+                } else {
+                    throw new IOException("Unknown solid record " + record);
+                }
+            }
+            if (written != jarLength) throw new IOException("Solid stream restored " + written + " of " + jarLength + " bytes");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return The length of the stored data written.
+     */
+    private static int deflateEntry(DataInputStream in, OutputStream out) throws IOException {
+        final int level = in.readByte();
+        final int storedLength = in.readInt();
+        final int storedChecksum = in.readInt();
+        final int contentLength = in.readInt();
+        if (level < 0 || level > 9 || storedLength < 0 || contentLength < 0 || contentLength > MAX_ENTRY_SIZE) {
+            throw new IOException("Malformed entry in solid stream");
+        }
+        final byte[] content = new byte[contentLength];
+        in.readFully(content);
+
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            final byte[] stored = new byte[storedLength + 1];
+            int length = 0;
+            while (!deflater.finished() && length < stored.length) {
+                length += deflater.deflate(stored, length, stored.length - length);
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(stored, 0, Math.min(length, storedLength));
+            if (!deflater.finished() || length != storedLength || (int) crc.getValue() != storedChecksum) {
+                throw new ReencodingMismatchException();
+            }
+            out.write(stored, 0, storedLength);
+            return storedLength;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Thrown when this server's deflate implementation produces other bytes than the one that built the JAR, such as
+     * with another zlib, so solid payloads can't be restored here.
+     */
+    static final class ReencodingMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ReencodingMismatchException() {
+            super("This server's deflate doesn't reproduce the backend's, solid payloads can't be restored");
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package me.akraml.loader.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A connection to the backend, speaking its framed sync protocol: every message is a type byte, the {@code int}
+ * length of its body, the body and the CRC-32 of the body. After the {@link #HELLO} exchange, which negotiates
+ * the compression of the payloads, the connection sends requests one at a time: the manifest, the payloads of some
+ * plugins, the compression dictionary, or a ping. The {@link #HELLO} also tells the backend the groups of this
+ * server, which decide the plugins its manifests hold.
+ */
+final class SyncConnection implements Closeable {
+
+    static final int VERSION = 5;
+
+    private static final byte HELLO = 1;
+    private static final byte MANIFEST = 2;
+    private static final byte FETCH = 3;
+    private static final byte PAYLOAD = 4;
+    private static final byte DATA = 5;
+    private static final byte MISSING = 6;
+    /** Sent by the backend before the payloads while this server waits for a transfer slot. */
+    private static final byte QUEUED = 7;
+    /** Sent by the backend instead of the payloads when its transfer queue is full. */
+    private static final byte BUSY = 8;
+    private static final byte PING = 9;
+    private static final byte PONG = 10;
+    private static final byte ERROR = 11;
+    private static final byte DICTIONARY = 12;
+
+    private static final byte COMPRESSION_NONE = 0;
+    private static final byte COMPRESSION_SOLID = 1;
+
+    private static final byte FULL_MANIFEST = 0;
+    private static final byte MANIFEST_DELTA = 1;
+
+    private static final byte FULL_PAYLOAD = 0;
+    private static final byte PATCH_PAYLOAD = 1;
+    private static final byte SOLID_PAYLOAD = 2;
+
+    /** Longest frame accepted from the backend, large manifests included. */
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    /**
+     * How long a stalled backend is waited for before it counts as failed, well past the {@link #QUEUED} notices it
+     * sends every 5 seconds to a server waiting for a transfer slot.
+     */
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final Socket socket;
+    private final BackendPool.Backend backend;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Logger logger;
+    private final Set<String> groups;
+    private boolean solidCompression;
+    private String dictionaryId = "";
+
+    private SyncConnection(Socket socket, BackendPool.Backend backend, Set<String> groups, Logger logger) throws IOException {
+        this.socket = socket;
+        this.backend = backend;
+        this.groups = groups;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.logger = logger;
+    }
+
+    /**
+     * Connects to the backend, which is only asked for anything once this server {@link #hello authenticated}.
+     *
+     * @param groups The lowercase server groups this server belongs to, empty to receive every plugin.
+     */
+    static SyncConnection connect(BackendPool.Backend backend, Set<String> groups, Logger logger) throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(backend.address, backend.port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            return new SyncConnection(socket, backend, groups, logger);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Authenticates and tells the backend the groups of this server.
+     *
+     * @param solidCompression Whether to ask for solid payloads, which cost CPU time on both ends to save bandwidth.
+     */
+    void hello(String authToken, boolean solidCompression) throws IOException {
+        send(HELLO, body -> {
+            body.writeInt(VERSION);
+            body.writeUTF(authToken);
+            body.writeByte(solidCompression ? COMPRESSION_SOLID : COMPRESSION_NONE);
+            body.writeInt(groups.size());
+            for (String group : groups) {
+                body.writeUTF(group);
+            }
+        });
+        final DataInputStream hello = expect(HELLO);
+        hello.readInt();
+        this.solidCompression = hello.readByte() == COMPRESSION_SOLID;
+        this.dictionaryId = hello.readUTF();
+    }
+
+    /**
+     * @return The backend this connection is open to.
+     */
+    BackendPool.Backend backend() {
+        return backend;
+    }
+
+    /**
+     * @return Whether the backend accepted to send solid payloads over this connection.
+     */
+    boolean solidCompression() {
+        return solidCompression;
+    }
+
+    /**
+     * @return The id of the backend's dictionary when the connection was opened, empty if it has none.
+     */
+    String dictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * Asks for the backend's current compression dictionary.
+     */
+    Dictionary requestDictionary() throws IOException {
+        send(DICTIONARY, body -> {
+        });
+        final DataInputStream body = expect(DICTIONARY);
+        final String id = body.readUTF();
+        final byte[] bytes = new byte[body.available()];
+        body.readFully(bytes);
+        return new Dictionary(id, bytes);
+    }
+
+    /**
+     * @return The round trip time to the backend, in nanoseconds.
+     */
+    long ping() throws IOException {
+        final long start = System.nanoTime();
+        send(PING, body -> body.writeLong(start));
+        if (expect(PONG).readLong() != start) throw new IOException("Backend answered another ping");
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Asks for the backend's manifest, as the changes since the provided one if it's recent enough and was
+     * received for the same groups.
+     */
+    Manifest requestManifest(Manifest previous) throws IOException {
+        final Manifest base = previous != null && previous.groups.equals(groups) ? previous : null;
+        send(MANIFEST, body -> {
+            body.writeLong(base == null ? 0 : base.epoch);
+            body.writeLong(base == null ? 0 : base.generation);
+        });
+        return readManifest(expect(MANIFEST), base, groups);
+    }
+
+    /**
+     * Reads a full manifest, or a delta which is applied to the provided base manifest.
+     */
+    private static Manifest readManifest(DataInputStream in, Manifest base, Set<String> groups) throws IOException {
+        final long epoch = in.readLong();
+        final long generation = in.readLong();
+        final byte kind = in.readByte();
+        if (kind != FULL_MANIFEST && kind != MANIFEST_DELTA) throw new IOException("Unknown manifest kind " + kind);
+        if (kind == MANIFEST_DELTA && (base == null || base.epoch != epoch)) {
+            throw new IOException("Backend sent changes since a generation this server doesn't have");
+        }
+
+        final Map<String, ManifestEntry> manifest = kind == MANIFEST_DELTA ? new LinkedHashMap<>(base.entries) : new LinkedHashMap<>();
+        final int pluginCount = in.readInt();
+        for (int i = 0; i < pluginCount; i++) {
+            final String pluginName = in.readUTF();
+            in.readUTF(); // Discard main class
+            final String hash = in.readUTF();
+            final long size = in.readLong();
+            final long revision = in.readLong();
+            removeIgnoreCase(manifest, pluginName);
+            manifest.put(pluginName, new ManifestEntry(hash, size, revision));
+        }
+        if (kind == MANIFEST_DELTA) {
+            final int removedCount = in.readInt();
+            for (int i = 0; i < removedCount; i++) {
+                removeIgnoreCase(manifest, in.readUTF());
+            }
+        }
+        return new Manifest(epoch, generation, groups, manifest);
+    }
+
+    private static void removeIgnoreCase(Map<String, ManifestEntry> manifest, String pluginName) {
+        manifest.keySet().removeIf(name -> name.equalsIgnoreCase(pluginName));
+    }
+
+    /**
+     * Asks for the payloads of the provided plugins, each to be read with {@link #nextPayload()} and its
+     * {@link #readData(byte[]) data frames}.
+     */
+    void fetch(List<FetchRequest> requests) throws IOException {
+        send(FETCH, body -> {
+            body.writeInt(requests.size());
+            for (FetchRequest request : requests) {
+                body.writeUTF(request.name);
+                body.writeUTF(request.hash);
+                body.writeLong(request.resumeChunk);
+                body.writeUTF(request.baseHash);
+                body.writeUTF(request.dictionaryId);
+            }
+        });
+    }
+
+    /**
+     * Waits for the next payload of a fetch, logging the queue position meanwhile.
+     *
+     * @return The next payload, which is {@link Payload#missing} if the backend doesn't serve the requested build
+     * anymore.
+     * @throws BackendBusyException If the backend's transfer queue is full.
+     */
+    Payload nextPayload() throws IOException {
+        while (true) {
+            final Frame frame = readFrame();
+            final DataInputStream body = frame.body();
+            switch (frame.type) {
+                case QUEUED:
+                    final int position = body.readInt();
+                    final int waitMillis = body.readInt();
+                    logger.info("Waiting for a transfer slot on the backend, position " + position + ", about " + Math.max(1, waitMillis / 1000) + "s left.");
+                    break;
+                case BUSY:
+                    throw new BackendBusyException(body.readInt());
+                case MISSING:
+                    return new Payload(body.readUTF(), 0, 0, false, false, true);
+                case PAYLOAD:
+                    final String name = body.readUTF();
+                    final long length = body.readLong();
+                    final long firstChunk = body.readLong();
+                    final byte kind = body.readByte();
+                    if (kind != FULL_PAYLOAD && kind != PATCH_PAYLOAD && kind != SOLID_PAYLOAD) throw new IOException("Unknown payload kind " + kind);
+                    return new Payload(name, length, firstChunk, kind == PATCH_PAYLOAD, kind == SOLID_PAYLOAD, false);
+                default:
+                    throw unexpected(frame);
+            }
+        }
+    }
+
+    /**
+     * Reads a data frame into the provided buffer, after verifying its checksum.
+     *
+     * @return The length of the frame's body.
+     */
+    int readData(byte[] buffer) throws IOException {
+        final byte type = in.readByte();
+        final int length = in.readInt();
+        if (type != DATA) throw new IOException("Expected a data frame, got frame type " + type);
+        if (length < 0 || length > buffer.length) throw new IOException("Data frame of " + length + " bytes is too long");
+        in.readFully(buffer, 0, length);
+        if (checksum(buffer, length) != in.readInt()) throw new IOException("Data frame checksum mismatch");
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private interface Body {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private void send(byte type, Body body) throws IOException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        body.writeTo(new DataOutputStream(content));
+        final byte[] bytes = content.toByteArray();
+        out.writeByte(type);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(checksum(bytes, bytes.length));
+        out.flush();
+    }
+
+    private DataInputStream expect(byte type) throws IOException {
+        final Frame frame = readFrame();
+        if (frame.type != type) throw unexpected(frame);
+        return frame.body();
+    }
+
+    private Frame readFrame() throws IOException {
+        final byte type = in.readByte();
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) throw new IOException("Frame of " + length + " bytes is too long");
+        final byte[] body = new byte[length];
+        in.readFully(body);
+        if (checksum(body, length) != in.readInt()) throw new IOException("Frame checksum mismatch");
+        return new Frame(type, body);
+    }
+
+    private static IOException unexpected(Frame frame) throws IOException {
+        if (frame.type == ERROR) return new IOException("The backend refused the request: " + frame.body().readUTF());
+        return new IOException("Unexpected frame type " + frame.type);
+    }
+
+    private static int checksum(byte[] bytes, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static final class Frame {
+        private final byte type;
+        private final byte[] body;
+
+        private Frame(byte type, byte[] body) {
+            this.type = type;
+            this.body = body;
+        }
+
+        private DataInputStream body() {
+            return new DataInputStream(new ByteArrayInputStream(body));
+        }
+    }
+
+    static final class Manifest {
+        final long epoch;
+        final long generation;
+        /** The groups the manifest was received for, it only holds the plugins served to them. */
+        final Set<String> groups;
+        final Map<String, ManifestEntry> entries;
+
+        private Manifest(long epoch, long generation, Set<String> groups, Map<String, ManifestEntry> entries) {
+            this.epoch = epoch;
+            this.generation = generation;
+            this.groups = groups;
+            this.entries = entries;
+        }
+    }
+
+    static final class ManifestEntry {
+        final String hash;
+        final long size;
+        final long revision;
+
+        private ManifestEntry(String hash, long size, long revision) {
+            this.hash = hash;
+            this.size = size;
+            this.revision = revision;
+        }
+    }
+
+    static final class FetchRequest {
+        final String name;
+        final String hash;
+        /** The first chunk this server doesn't have yet, 0 to download the whole payload. */
+        final long resumeChunk;
+        /** The hash of a build of the plugin this server has, which the backend may send a patch from, empty for none. */
+        final String baseHash;
+        /** The id of the dictionary this server can restore solid payloads with, empty for none. */
+        final String dictionaryId;
+
+        FetchRequest(String name, String hash, long resumeChunk, String baseHash, String dictionaryId) {
+            this.name = name;
+            this.hash = hash;
+            this.resumeChunk = resumeChunk;
+            this.baseHash = baseHash;
+            this.dictionaryId = dictionaryId;
+        }
+    }
+
+    /**
+     * A payload announced by the backend, followed by a data frame with its header and one per sealed chunk
+     * from {@link #firstChunk} on, unless it's {@link #missing}.
+     */
+    static final class Payload {
+        final String name;
+        final long length;
+        final long firstChunk;
+        /** Whether the payload is a {@link JarPatch} from the requested base build rather than the whole JAR. */
+        final boolean patch;
+        /** Whether the payload is a {@link SolidCodec} stream encoded with the requested dictionary. */
+        final boolean solid;
+        /** Whether the backend doesn't serve the requested build anymore, as it published another one since the manifest. */
+        final boolean missing;
+
+        private Payload(String name, long length, long firstChunk, boolean patch, boolean solid, boolean missing) {
+            this.name = name;
+            this.length = length;
+            this.firstChunk = firstChunk;
+            this.patch = patch;
+            this.solid = solid;
+            this.missing = missing;
+        }
+    }
+
+    /**
+     * A compression dictionary of the backend.
+     */
+    static final class Dictionary {
+        static final Dictionary NONE = new Dictionary("", new byte[0]);
+
+        final String id;
+        final byte[] bytes;
+
+        private Dictionary(String id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Thrown when the backend's transfer queue is full, with the delay it asked for before trying again.
+     */
+    static final class BackendBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterMillis;
+
+        private BackendBusyException(long retryAfterMillis) {
+            super("The backend's transfer queue is full");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /**
+     * Thrown once a fetch is complete when the backend didn't serve some builds of the manifest anymore, as its
+     * plugins changed during the sync. The connection can still be used.
+     */
+    static final class StaleManifestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleManifestException(Collection<String> pluginNames) {
+            super("The backend's plugins changed during the sync (" + String.join(", ", pluginNames) + ")");
+        }
+    }
+}
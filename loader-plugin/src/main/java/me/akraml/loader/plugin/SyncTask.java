@@ -3,43 +3,190 @@ package me.akraml.loader.plugin;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A true staggered worker task that performs one operation per execution
- * to prevent the main thread from freezing.
+ * A staggered worker task that runs every tick and performs as many operations as fit in its per-tick
+ * time budget, so an idle server finishes a sync within a few ticks.
+ * <p>
+ * It also measures the time between its runs: when recent ticks are longer than the server's 50ms target,
+ * it performs a single operation and then skips an increasing number of ticks to let the server catch up.
+ * <p>
+ * With class definition enabled, a plugin is loaded in one operation, its classes are defined in batches of a
+ * couple of milliseconds over the following operations, and it is enabled once they're all defined. Classes are
+ * defined on the main thread like any other, since Bukkit's class maps aren't safe to update from other threads.
+ * Plugins are still enabled in their load order.
+ * <p>
+ * Swaps and loads share one queue in dependency order, so a new build of a running plugin that depends on a
+ * plugin first loaded in the same sync is only swapped in once that plugin is enabled.
  */
 public class SyncTask extends BukkitRunnable {
 
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    /** Average tick times beyond this (about 18 TPS) mean the server is lagging. */
+    private static final long LAG_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(55);
+    private static final int MAX_BACKOFF_TICKS = 40;
+    /** Main thread time of a single batch of class definitions. */
+    private static final long DEFINE_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
     private final LoaderPlugin plugin;
     private final List<Plugin> pluginsToUnload;
+    private final Set<String> pluginsToSwap;
     private final List<LoaderPlugin.PluginData> pluginsToLoad;
+    private final long budgetNanos;
+    private final boolean defineClasses;
+    private final List<PendingEnable> pendingEnables = new ArrayList<>();
+
+    private long lastRunNanos;
+    private long averageTickNanos = TICK_NANOS;
+    private long averageOperationNanos;
+    private int backoffTicks;
+    private int skipTicks;
+
+    private int ticks;
+    private int operations;
+    private long busyNanos;
 
-    public SyncTask(LoaderPlugin plugin, List<Plugin> pluginsToUnload, List<LoaderPlugin.PluginData> pluginsToLoad) {
+    /**
+     * @param pluginsToSwap The lowercase names of the plugins to load that replace a running build.
+     * @param pluginsToLoad The plugins to load or swap, in dependency order.
+     * @param budgetNanos   Main thread time the task may use per tick.
+     * @param defineClasses Whether to define the classes of a plugin between loading and enabling it.
+     */
+    public SyncTask(LoaderPlugin plugin, List<Plugin> pluginsToUnload, Set<String> pluginsToSwap,
+                    List<LoaderPlugin.PluginData> pluginsToLoad, long budgetNanos, boolean defineClasses) {
         this.plugin = plugin;
         this.pluginsToUnload = pluginsToUnload;
+        this.pluginsToSwap = pluginsToSwap;
         this.pluginsToLoad = pluginsToLoad;
+        this.budgetNanos = budgetNanos;
+        this.defineClasses = defineClasses;
     }
 
     @Override
     public void run() {
+        final long start = System.nanoTime();
+        if (lastRunNanos != 0) {
+            // Moving average over the last few ticks, so a single slow tick doesn't trigger a backoff.
+            averageTickNanos += (start - lastRunNanos - averageTickNanos) / 4;
+        }
+        lastRunNanos = start;
+        ticks++;
+
+        final boolean lagging = averageTickNanos > LAG_THRESHOLD_NANOS;
+        if (lagging) {
+            if (skipTicks > 0) {
+                skipTicks--;
+                return;
+            }
+            backoffTicks = Math.min(Math.max(1, backoffTicks * 2), MAX_BACKOFF_TICKS);
+            skipTicks = backoffTicks;
+        } else {
+            backoffTicks = 0;
+            skipTicks = 0;
+        }
+
+        // Start another operation only if it's expected to still fit in this tick's budget.
+        do {
+            if (!runNextOperation()) {
+                finish();
+                return;
+            }
+        } while (!lagging && System.nanoTime() - start + averageOperationNanos <= budgetNanos);
+    }
+
+    /**
+     * @return {@code false} once every operation is done.
+     */
+    private boolean runNextOperation() {
+        final long start = System.nanoTime();
+        final String description;
+
         // Prioritize unloading first
         if (!pluginsToUnload.isEmpty()) {
-            Plugin pluginToUnload = pluginsToUnload.remove(0);
+            final Plugin pluginToUnload = pluginsToUnload.remove(0);
             plugin.unloadPlugin(pluginToUnload);
-            return; // End this tick's execution
+            description = "Unloading " + pluginToUnload.getName();
+        } else if (!pendingEnables.isEmpty()) {
+            final PendingEnable pendingEnable = pendingEnables.get(0);
+            if (pendingEnable.nextClass < pendingEnable.data.classNames.size()) {
+                final int defined = defineClasses(pendingEnable, start + DEFINE_BATCH_NANOS);
+                description = "Defining " + defined + " classes of " + pendingEnable.data.name;
+            } else {
+                pendingEnables.remove(0);
+                plugin.enableLoadedPlugin(pendingEnable.data, pendingEnable.loadedPlugin, pendingEnable.definedClasses);
+                description = "Enabling " + pendingEnable.data.name;
+            }
+        } else if (!pluginsToLoad.isEmpty() && pluginsToSwap.contains(pluginsToLoad.get(0).name.toLowerCase())) {
+            // The new build is staged already, so the plugin is only missing for this one operation.
+            final LoaderPlugin.PluginData dataToSwap = pluginsToLoad.remove(0);
+            plugin.swapPlugin(dataToSwap);
+            description = "Swapping " + dataToSwap.name;
+        } else if (!pluginsToLoad.isEmpty()) {
+            final LoaderPlugin.PluginData dataToLoad = pluginsToLoad.remove(0);
+            final Plugin loadedPlugin = plugin.loadPluginFromData(dataToLoad);
+            if (loadedPlugin != null) {
+                if (defineClasses && dataToLoad.classNames != null) {
+                    pendingEnables.add(new PendingEnable(dataToLoad, loadedPlugin));
+                } else {
+                    plugin.enableLoadedPlugin(dataToLoad, loadedPlugin, -1);
+                }
+            }
+            description = "Loading " + dataToLoad.name;
+        } else {
+            return false;
         }
 
-        // Then, handle loading
-        if (!pluginsToLoad.isEmpty()) {
-            LoaderPlugin.PluginData dataToLoad = pluginsToLoad.remove(0);
-            // Correctly call the method with two arguments
-            plugin.loadPluginFromData(dataToLoad.name, dataToLoad.fileBytes);
-            return; // End this tick's execution
-        }
+        final long elapsed = System.nanoTime() - start;
+        averageOperationNanos = operations == 0 ? elapsed : averageOperationNanos + (elapsed - averageOperationNanos) / 4;
+        operations++;
+        busyNanos += elapsed;
+        plugin.getLogger().info(String.format("%s took %.2fms", description, elapsed / 1_000_000.0));
+        return true;
+    }
+
+    /**
+     * Defines the next classes of a loaded plugin in its class loader, without initializing them, until the provided
+     * deadline. Static initializers, and with them any plugin code, still only run once the plugin uses them.
+     *
+     * @return The number of classes this batch went through.
+     */
+    private static int defineClasses(PendingEnable pendingEnable, long deadlineNanos) {
+        final List<String> classNames = pendingEnable.data.classNames;
+        final ClassLoader classLoader = pendingEnable.loadedPlugin.getClass().getClassLoader();
+        int count = 0;
+        do {
+            try {
+                Class.forName(classNames.get(pendingEnable.nextClass), false, classLoader);
+                pendingEnable.definedClasses++;
+            } catch (LinkageError | ClassNotFoundException ignored) {
+                // Usually a class referencing an optional dependency, it fails the same way when used
+            }
+            pendingEnable.nextClass++;
+            count++;
+        } while (pendingEnable.nextClass < classNames.size() && System.nanoTime() < deadlineNanos);
+        return count;
+    }
 
-        // If both lists are empty, the job is done.
-        plugin.getLogger().info("All sync operations complete.");
+    private void finish() {
+        plugin.getLogger().info(String.format("All sync operations complete: %d operations over %d ticks, %.2fms of main thread time.",
+                operations, ticks, busyNanos / 1_000_000.0));
         this.cancel();
+        plugin.onSyncFinished();
+    }
+
+    private static final class PendingEnable {
+        private final LoaderPlugin.PluginData data;
+        private final Plugin loadedPlugin;
+        private int nextClass;
+        private int definedClasses;
+
+        private PendingEnable(LoaderPlugin.PluginData data, Plugin loadedPlugin) {
+            this.data = data;
+            this.loadedPlugin = loadedPlugin;
+        }
     }
 }